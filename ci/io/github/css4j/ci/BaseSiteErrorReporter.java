@@ -320,7 +320,7 @@ abstract public class BaseSiteErrorReporter implements SiteErrorReporter {
 
 	@Override
 	public void unmatchedLeftSelector(StyleSheet sheet, int sheetIndex, DOMElement elm, String property,
-			String propertyValue, LinkedList<Selector> selectorList, LinkedList<Selector> unmatched) {
+			String propertyValue, List<Selector> selectorList, List<Selector> unmatched) {
 		writeError("Failing due to issue in sheet:");
 		selectErrorTargetSheet(sheet, sheetIndex);
 		writeError("Failing due to issue with style on element: " + elm.getStartTag());
@@ -335,7 +335,7 @@ abstract public class BaseSiteErrorReporter implements SiteErrorReporter {
 
 	@Override
 	public void unmatchedRightSelector(StyleSheet sheet, int sheetIndex, DOMElement elm, String property,
-			String propertyValue, LinkedList<Selector> selectorList, LinkedList<Selector> unmatched) {
+			String propertyValue, List<Selector> selectorList, List<Selector> unmatched) {
 		writeError("Trouble with property specified in sheet (" + rightSide + "):");
 		selectErrorTargetSheet(sheet, sheetIndex);
 		writeError("Failing due to issue with style on element: " + elm.getStartTag());
@@ -0,0 +1,318 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import io.sf.carte.net.NetCache;
+import nu.validator.htmlparser.common.XmlViolationPolicy;
+import nu.validator.htmlparser.sax.HtmlParser;
+
+/**
+ * Fills the network cache before the validation run.
+ * <p>
+ * The documents are retrieved with a bounded pool of connections, and scanned
+ * for their {@code <link rel="stylesheet">} and {@code @import} targets, which
+ * are retrieved as well (including nested imports). Failures are only logged,
+ * as the validation run retrieves again whatever is missing.
+ * </p>
+ */
+class CachePrefetcher {
+
+	final static Logger log = LoggerFactory.getLogger(CachePrefetcher.class.getName());
+
+	private static final Pattern IMPORT_PATTERN = Pattern
+			.compile("@import\\s+(?:url\\(\\s*)?[\"']?([^\"')\\s;]+)", Pattern.CASE_INSENSITIVE);
+
+	private final NetCache netcache;
+
+	private final NetCache.Origin origin;
+
+	private final boolean refresh;
+
+	private final ExecutorService executor;
+
+	private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final AtomicInteger fetched = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * Construct a prefetcher.
+	 *
+	 * @param netcache the network cache.
+	 * @param origin   the origin used to open network connections.
+	 * @param refresh  if {@code true}, refresh the resources that are cached.
+	 * @param threads  the maximum number of concurrent connections.
+	 */
+	CachePrefetcher(NetCache netcache, NetCache.Origin origin, boolean refresh, int threads) {
+		super();
+		this.netcache = netcache;
+		this.origin = origin;
+		this.refresh = refresh;
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "prefetch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Retrieve the given documents and their style sheets, and wait for all the
+	 * retrievals to complete.
+	 *
+	 * @param uris the document URIs.
+	 * @throws InterruptedException if the thread was interrupted while waiting.
+	 */
+	void prefetch(Collection<String> uris) throws InterruptedException {
+		long time = System.currentTimeMillis();
+		try {
+			for (String uri : uris) {
+				URL url;
+				try {
+					url = new java.net.URI(uri).toURL();
+				} catch (URISyntaxException | MalformedURLException | IllegalArgumentException e) {
+					log.warn("Invalid site URI: " + uri);
+					continue;
+				}
+				submit(url, true);
+			}
+			synchronized (pending) {
+				while (pending.get() != 0) {
+					pending.wait();
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info("Prefetched " + fetched.get() + " resources (" + failed.get() + " failed) in "
+				+ (System.currentTimeMillis() - time) + " ms.");
+	}
+
+	private void submit(URL url, boolean document) {
+		String prot = url.getProtocol();
+		if (!"https".equals(prot) && !"http".equals(prot)) {
+			return;
+		}
+		String uri = url.toExternalForm();
+		int idx = uri.indexOf('#');
+		if (idx != -1) {
+			try {
+				url = new URL(uri.substring(0, idx));
+			} catch (MalformedURLException e) {
+				return;
+			}
+			uri = url.toExternalForm();
+		}
+		if (!seen.add(uri)) {
+			return;
+		}
+		pending.incrementAndGet();
+		final URL target = url;
+		executor.execute(() -> {
+			try {
+				if (document) {
+					fetchDocument(target);
+				} else {
+					fetchStyleSheet(target);
+				}
+				fetched.incrementAndGet();
+			} catch (IOException | SAXException | RuntimeException e) {
+				failed.incrementAndGet();
+				log.warn("Could not prefetch " + target.toExternalForm() + ": " + e.toString());
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					synchronized (pending) {
+						pending.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	private URLConnection open(URL url) throws IOException {
+		return netcache.openConnection(url, SampleSitesIT.encodeString(url.toExternalForm()),
+				refresh, origin);
+	}
+
+	private void fetchDocument(URL url) throws IOException, SAXException {
+		URLConnection ucon = open(url);
+		LinkHandler handler = new LinkHandler(url);
+		try (InputStream is = ucon.getInputStream()) {
+			InputSource source = new InputSource(is);
+			source.setSystemId(url.toExternalForm());
+			Charset charset = charset(ucon.getContentType());
+			if (charset != null) {
+				source.setEncoding(charset.name());
+			}
+			HtmlParser parser = new HtmlParser(XmlViolationPolicy.ALTER_INFOSET);
+			parser.setCommentPolicy(XmlViolationPolicy.ALLOW);
+			parser.setXmlnsPolicy(XmlViolationPolicy.ALLOW);
+			parser.setContentHandler(handler);
+			parser.parse(source);
+		}
+	}
+
+	private void fetchStyleSheet(URL url) throws IOException {
+		URLConnection ucon = open(url);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(8192);
+		try (InputStream is = ucon.getInputStream()) {
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = is.read(b)) != -1) {
+				buf.write(b, 0, n);
+			}
+		}
+		Charset charset = charset(ucon.getContentType());
+		if (charset == null) {
+			charset = StandardCharsets.UTF_8;
+		}
+		findImports(url, new String(buf.toByteArray(), charset));
+	}
+
+	private void findImports(URL base, CharSequence css) {
+		Matcher matcher = IMPORT_PATTERN.matcher(css);
+		while (matcher.find()) {
+			try {
+				submit(new URL(base, matcher.group(1)), false);
+			} catch (MalformedURLException e) {
+			}
+		}
+	}
+
+	/**
+	 * Find the charset declared by the given content type.
+	 *
+	 * @param contentType the content type, or {@code null}.
+	 * @return the charset, or {@code null} if none was declared or the declared
+	 *         one is invalid or unsupported.
+	 */
+	static Charset charset(String contentType) {
+		if (contentType != null) {
+			int idx = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+			if (idx != -1) {
+				String charset = contentType.substring(idx + 8).trim();
+				int end = charset.indexOf(';');
+				if (end != -1) {
+					charset = charset.substring(0, end).trim();
+				}
+				charset = charset.replace("\"", "").replace("'", "");
+				if (charset.length() != 0) {
+					try {
+						return Charset.forName(charset);
+					} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Collects the style sheets referenced by a document.
+	 */
+	private class LinkHandler extends DefaultHandler {
+
+		private URL base;
+
+		private boolean baseSet = false;
+
+		private StringBuilder styleText = null;
+
+		LinkHandler(URL url) {
+			super();
+			this.base = url;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) {
+			String name = localName.toLowerCase(Locale.ROOT);
+			if ("base".equals(name)) {
+				String href = atts.getValue("href");
+				if (!baseSet && href != null) {
+					baseSet = true;
+					try {
+						base = new URL(base, href.trim());
+					} catch (MalformedURLException e) {
+					}
+				}
+			} else if ("link".equals(name)) {
+				String rel = atts.getValue("rel");
+				String href = atts.getValue("href");
+				if (rel != null && href != null && isStyleSheetRel(rel)) {
+					try {
+						submit(new URL(base, href.trim()), false);
+					} catch (MalformedURLException e) {
+					}
+				}
+			} else if ("style".equals(name)) {
+				styleText = new StringBuilder(256);
+			}
+		}
+
+		private boolean isStyleSheetRel(String rel) {
+			for (String token : rel.trim().split("\\s+")) {
+				if ("stylesheet".equalsIgnoreCase(token)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (styleText != null) {
+				styleText.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (styleText != null && "style".equalsIgnoreCase(localName)) {
+				findImports(base, styleText);
+				styleText = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,305 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Node;
+import org.w3c.dom.stylesheets.StyleSheet;
+
+import io.sf.carte.doc.dom.DOMElement;
+import io.sf.carte.doc.style.css.CSSElement;
+import io.sf.carte.doc.style.css.CSSMediaException;
+import io.sf.carte.doc.style.css.CSSRule;
+import io.sf.carte.doc.style.css.CSSStyleSheet;
+import io.sf.carte.doc.style.css.SACErrorHandler;
+import io.sf.carte.doc.style.css.SheetErrorHandler;
+import io.sf.carte.doc.style.css.StyleDeclarationErrorHandler;
+import io.sf.carte.doc.style.css.nsac.Selector;
+import io.sf.carte.doc.style.css.nsac.SelectorList;
+import io.sf.carte.doc.style.css.om.AbstractCSSStyleSheet;
+import io.sf.carte.doc.style.css.om.StyleRule;
+import io.sf.carte.doc.style.css.property.CSSPropertyValueException;
+
+/**
+ * Records the reports of a check, so they can be replayed to the site reporter
+ * later, in a deterministic order.
+ * <p>
+ * Failing records the failure and ends the check, like the site reporter
+ * would; the failure is effective when it is replayed.
+ * </p>
+ */
+class DeferredSiteErrorReporter implements SiteErrorReporter {
+
+	private final List<Event> events = new ArrayList<>();
+
+	/**
+	 * A recorded report.
+	 */
+	@FunctionalInterface
+	private interface Event {
+
+		void replay(SiteErrorReporter target) throws IOException;
+
+	}
+
+	/**
+	 * Replay the recorded reports, in the order they were made.
+	 * 
+	 * @param target the reporter to replay to.
+	 * @throws IOException if the target reporter could not start a site report.
+	 */
+	void replay(SiteErrorReporter target) throws IOException {
+		for (Event event : events) {
+			event.replay(target);
+		}
+	}
+
+	/**
+	 * Check whether any report was recorded.
+	 * 
+	 * @return {@code true} if no report was recorded.
+	 */
+	boolean isEmpty() {
+		return events.isEmpty();
+	}
+
+	@Override
+	public void startSiteReport(URL url) {
+		events.add(r -> r.startSiteReport(url));
+	}
+
+	@Override
+	public void setSideDescriptions(String leftSide, String rightSide) {
+		events.add(r -> r.setSideDescriptions(leftSide, rightSide));
+	}
+
+	@Override
+	public void sideComparison(String message) {
+		events.add(r -> r.sideComparison(message));
+	}
+
+	@Override
+	public void leftHasMoreSheets(List<CSSStyleSheet<? extends CSSRule>> missingSheets,
+			int smallerCount) {
+		events.add(r -> r.leftHasMoreSheets(missingSheets, smallerCount));
+	}
+
+	@Override
+	public void rightHasMoreSheets(List<CSSStyleSheet<? extends CSSRule>> missingSheets,
+			int smallerCount) {
+		events.add(r -> r.rightHasMoreSheets(missingSheets, smallerCount));
+	}
+
+	@Override
+	public void mediaQueryError(Node ownerNode, CSSMediaException exception) {
+		events.add(r -> r.mediaQueryError(ownerNode, exception));
+	}
+
+	@Override
+	public void linkedStyleError(Node ownerNode, String message) {
+		events.add(r -> r.linkedStyleError(ownerNode, message));
+	}
+
+	@Override
+	public void linkedSheetError(Exception exception, CSSStyleSheet<? extends CSSRule> sheet) {
+		events.add(r -> r.linkedSheetError(exception, sheet));
+	}
+
+	@Override
+	public void inlineStyleError(CSSElement owner, Exception exception, String style) {
+		events.add(r -> r.inlineStyleError(owner, exception, style));
+	}
+
+	@Override
+	public void inlineStyleError(CSSElement owner, StyleDeclarationErrorHandler styleHandler) {
+		events.add(r -> r.inlineStyleError(owner, styleHandler));
+	}
+
+	@Override
+	public void computedStyleError(CSSElement element, String propertyName,
+			CSSPropertyValueException ex) {
+		events.add(r -> r.computedStyleError(element, propertyName, ex));
+	}
+
+	@Override
+	public void computedStyleExtraProperties(String message, DOMElement elm, String[] properties,
+			String backendName) {
+		events.add(r -> r.computedStyleExtraProperties(message, elm, properties, backendName));
+	}
+
+	@Override
+	public void presentationalHintError(DOMElement element, Throwable ex) {
+		events.add(r -> r.presentationalHintError(element, ex));
+	}
+
+	@Override
+	public void minifiedMissingProperty(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String cssText, String miniCssText, String property, String propertyValue) {
+		events.add(r -> r.minifiedMissingProperty(parent, ruleIndex, cssText, miniCssText,
+				property, propertyValue));
+	}
+
+	@Override
+	public void minifiedExtraProperty(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String cssText, String miniCssText, String property, String propertyValue) {
+		events.add(r -> r.minifiedExtraProperty(parent, ruleIndex, cssText, miniCssText, property,
+				propertyValue));
+	}
+
+	@Override
+	public void minifiedDifferentValues(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String cssText, String miniCssText, String property, String propertyValueText,
+			String miniValueText) {
+		events.add(r -> r.minifiedDifferentValues(parent, ruleIndex, cssText, miniCssText,
+				property, propertyValueText, miniValueText));
+	}
+
+	@Override
+	public void minifiedParseErrors(String cssText, String miniCssText,
+			StyleDeclarationErrorHandler styleDeclarationErrorHandler) {
+		events.add(r -> r.minifiedParseErrors(cssText, miniCssText, styleDeclarationErrorHandler));
+	}
+
+	@Override
+	public void reparsedMissingProperty(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String initialCssText, String reparsedCssText, String property, String propertyValue) {
+		events.add(r -> r.reparsedMissingProperty(parent, ruleIndex, initialCssText,
+				reparsedCssText, property, propertyValue));
+	}
+
+	@Override
+	public void reparsedExtraProperty(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String initialCssText, String reparsedCssText, String property, String propertyValue) {
+		events.add(r -> r.reparsedExtraProperty(parent, ruleIndex, initialCssText,
+				reparsedCssText, property, propertyValue));
+	}
+
+	@Override
+	public void reparsedDifferentValues(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String initialCssText, String reparsedCssText, String property,
+			String propertyValueText, String reparsedValueText) {
+		events.add(r -> r.reparsedDifferentValues(parent, ruleIndex, initialCssText,
+				reparsedCssText, property, propertyValueText, reparsedValueText));
+	}
+
+	@Override
+	public void ruleReparseIssue(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String parsedText, String finalText) {
+		events.add(r -> r.ruleReparseIssue(parent, ruleIndex, parsedText, finalText));
+	}
+
+	@Override
+	public void ruleReparseError(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			String parsedText, DOMException ex) {
+		events.add(r -> r.ruleReparseError(parent, ruleIndex, parsedText, ex));
+	}
+
+	@Override
+	public void ruleReparseErrors(String parsedText, String finalText,
+			StyleDeclarationErrorHandler styleDeclarationErrorHandler) {
+		events.add(r -> r.ruleReparseErrors(parsedText, finalText, styleDeclarationErrorHandler));
+	}
+
+	@Override
+	public void ruleSelectorError(StyleRule stylerule, SelectorList selist, SelectorList oselist,
+			String selectorText, int sheetIndex, int ruleIndex, AbstractCSSStyleSheet parent) {
+		events.add(r -> r.ruleSelectorError(stylerule, selist, oselist, selectorText, sheetIndex,
+				ruleIndex, parent));
+	}
+
+	@Override
+	public void ioError(String href, IOException exception) {
+		events.add(r -> r.ioError(href, exception));
+	}
+
+	@Override
+	public void differentNodes(DOMElement parent, LinkedList<Node> nodediff) {
+		events.add(r -> r.differentNodes(parent, nodediff));
+	}
+
+	@Override
+	public void unmatchedLeftSelector(StyleSheet sheet, int sheetIndex, DOMElement elm,
+			String property, String propertyValue, List<Selector> selectorList,
+			List<Selector> unmatched) {
+		events.add(r -> r.unmatchedLeftSelector(sheet, sheetIndex, elm, property, propertyValue,
+				selectorList, unmatched));
+	}
+
+	@Override
+	public void unmatchedRightSelector(StyleSheet sheet, int sheetIndex, DOMElement elm,
+			String property, String propertyValue, List<Selector> selectorList,
+			List<Selector> unmatched) {
+		events.add(r -> r.unmatchedRightSelector(sheet, sheetIndex, elm, property, propertyValue,
+				selectorList, unmatched));
+	}
+
+	@Override
+	public void differentComputedValues(DOMElement elm, String property, String valueText,
+			String rightValueText) {
+		events.add(r -> r.differentComputedValues(elm, property, valueText, rightValueText));
+	}
+
+	@Override
+	public void ruleErrors(CSSStyleSheet<? extends CSSRule> sheet, int sheetIndex,
+			StyleDeclarationErrorHandler eh) {
+		events.add(r -> r.ruleErrors(sheet, sheetIndex, eh));
+	}
+
+	@Override
+	public void ruleWarnings(CSSStyleSheet<? extends CSSRule> sheet, int sheetIndex,
+			StyleDeclarationErrorHandler eh) {
+		events.add(r -> r.ruleWarnings(sheet, sheetIndex, eh));
+	}
+
+	@Override
+	public void omIssues(CSSStyleSheet<? extends CSSRule> sheet, int sheetIndex,
+			SheetErrorHandler errHandler) {
+		events.add(r -> r.omIssues(sheet, sheetIndex, errHandler));
+	}
+
+	@Override
+	public void sacIssues(CSSStyleSheet<? extends CSSRule> sheet, int sheetIndex,
+			SACErrorHandler errHandler) {
+		events.add(r -> r.sacIssues(sheet, sheetIndex, errHandler));
+	}
+
+	@Override
+	public void error(String message, Throwable exception) {
+		events.add(r -> r.error(message, exception));
+	}
+
+	@Override
+	public void fail(String message) {
+		events.add(r -> r.fail(message));
+		org.junit.Assert.fail(message);
+	}
+
+	@Override
+	public void fail(String message, Throwable exception) {
+		events.add(r -> r.fail(message, exception));
+		org.junit.Assert.fail(message + ": " + exception.getMessage());
+	}
+
+	/**
+	 * Does nothing, as the site reporter is closed by its owner.
+	 */
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.runners.Parameterized;
+import org.junit.runners.model.RunnerScheduler;
+
+/**
+ * A {@link Parameterized} runner that runs the sites of {@link SampleSitesIT}
+ * concurrently, on a pool of {@code sites.threads} threads.
+ * <p>
+ * The outcomes are reported to JUnit as usual. With a single thread, the sites
+ * run sequentially like with the {@code Parameterized} runner.
+ * </p>
+ */
+public class ParallelParameterized extends Parameterized {
+
+	public ParallelParameterized(Class<?> klass) throws Throwable {
+		super(klass);
+		int threads = SampleSitesIT.getSiteThreads();
+		if (threads > 1) {
+			setScheduler(new PoolScheduler(threads));
+		}
+	}
+
+	private static class PoolScheduler implements RunnerScheduler {
+
+		private final ExecutorService executor;
+
+		PoolScheduler(int threads) {
+			super();
+			AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(threads, r -> {
+				Thread thread = new Thread(r, "site-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		@Override
+		public void schedule(Runnable childStatement) {
+			executor.execute(childStatement);
+		}
+
+		@Override
+		public void finished() {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
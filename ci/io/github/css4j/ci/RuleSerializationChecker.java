@@ -0,0 +1,887 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import org.w3c.dom.DOMException;
+
+import io.sf.carte.doc.dom.CSSDOMImplementation;
+import io.sf.carte.doc.style.css.CSSDeclarationRule;
+import io.sf.carte.doc.style.css.CSSRule;
+import io.sf.carte.doc.style.css.CSSStyleSheet;
+import io.sf.carte.doc.style.css.nsac.Parser;
+import io.sf.carte.doc.style.css.nsac.SelectorList;
+import io.sf.carte.doc.style.css.om.AbstractCSSRule;
+import io.sf.carte.doc.style.css.om.AbstractCSSStyleSheet;
+import io.sf.carte.doc.style.css.om.BaseCSSDeclarationRule;
+import io.sf.carte.doc.style.css.om.BaseCSSStyleDeclaration;
+import io.sf.carte.doc.style.css.om.CSSOMBridge;
+import io.sf.carte.doc.style.css.om.CSSRuleArrayList;
+import io.sf.carte.doc.style.css.om.GroupingRule;
+import io.sf.carte.doc.style.css.om.StyleRule;
+import io.sf.carte.doc.style.css.om.StyleSheetList;
+import io.sf.carte.doc.style.css.parser.ParseHelper;
+import io.sf.carte.doc.style.css.property.StyleValue;
+import io.sf.carte.doc.style.css.util.ExceptionErrorHandler;
+import io.sf.carte.util.Diff;
+
+/**
+ * Verifies that the <code>cssText</code> serializations of the rules (including
+ * the minified and optimized serializations) can be re-parsed to an identical
+ * rule.
+ * <p>
+ * The checker parses the serializations (and creates the rules used for
+ * comparison) with its own DOM implementation. As the object model is not
+ * thread-safe, the sheets being checked are only used from the calling thread,
+ * and must not be modified while a check is pending.
+ * </p>
+ * <p>
+ * The serializations can also be re-parsed in a fork/join pool, in shards of up
+ * to {@value #SHARD_SIZE} rules. The pool only gets the serialized text: a shard
+ * takes a parse context that no other running shard is using, and the re-parsed
+ * rules are compared to the originals on the calling thread, in document order,
+ * once all the shards are done. Meanwhile, the calling thread can keep using the
+ * document.
+ * </p>
+ * <p>
+ * If a {@link SerializationVerdictStore} is set, the sheets that it knows to be
+ * clean are skipped, and those found clean are recorded in it. The sheets are
+ * identified by their source, and those whose source is not known are always
+ * checked.
+ * </p>
+ */
+class RuleSerializationChecker {
+
+	static final int SHARD_SIZE = 256;
+
+	private final SiteErrorReporter reporter;
+
+	private final EnumSet<Parser.Flag> parserFlags;
+
+	private final ParseContext context;
+
+	private SerializationVerdictStore verdicts = null;
+
+	private Function<AbstractCSSStyleSheet, byte[]> sources = null;
+
+	/**
+	 * Construct a checker.
+	 * 
+	 * @param reporter    the reporter for the issues found.
+	 * @param parserFlags the parser flags.
+	 */
+	RuleSerializationChecker(SiteErrorReporter reporter, EnumSet<Parser.Flag> parserFlags) {
+		this(reporter, parserFlags, new ParseContext(parserFlags));
+	}
+
+	private RuleSerializationChecker(SiteErrorReporter reporter,
+			EnumSet<Parser.Flag> parserFlags, ParseContext context) {
+		super();
+		this.reporter = reporter;
+		this.parserFlags = parserFlags;
+		this.context = context;
+	}
+
+	/**
+	 * Set the store of verdicts from previous runs.
+	 * 
+	 * @param verdicts the verdict store, or {@code null} to check all the sheets.
+	 * @param sources  gives the source of a sheet, or {@code null} if it is not
+	 *                 known, in which case the sheet is always checked.
+	 */
+	void setVerdictStore(SerializationVerdictStore verdicts,
+			Function<AbstractCSSStyleSheet, byte[]> sources) {
+		this.verdicts = verdicts;
+		this.sources = sources;
+	}
+
+	/**
+	 * Compute the verdict key of the given sheet.
+	 * 
+	 * @param sheet the sheet.
+	 * @return the key, or {@code null} if no verdicts are used for the sheet.
+	 */
+	private String verdictKey(AbstractCSSStyleSheet sheet) {
+		if (verdicts == null) {
+			return null;
+		}
+		byte[] source = sources.apply(sheet);
+		return source != null ? verdicts.key(source) : null;
+	}
+
+	/**
+	 * Check the serialization of the rules in the given sheets.
+	 * 
+	 * @param sheets the sheets.
+	 * @return {@code -1} if no issues were found, otherwise the type of a rule
+	 *         that had issues ({@code STYLE_RULE} if a style rule had issues).
+	 * @throws DOMException if a rule could not be re-parsed.
+	 * @throws IOException  if an I/O error happened.
+	 */
+	short checkRuleSerialization(StyleSheetList sheets) throws DOMException, IOException {
+		PendingCheck check = new PendingCheck(sheets);
+		check.parse(context);
+		return check.complete();
+	}
+
+	/**
+	 * Check the serialization of the rules in the given sheets, re-parsing the
+	 * serializations in the given pool.
+	 * 
+	 * @param sheets the sheets.
+	 * @param pool   the pool.
+	 * @return {@code -1} if no issues were found, otherwise the type of a rule
+	 *         that had issues ({@code STYLE_RULE} if a style rule had issues).
+	 * @throws DOMException if a rule could not be re-parsed.
+	 * @throws IOException  if an I/O error happened.
+	 */
+	short checkRuleSerialization(StyleSheetList sheets, ForkJoinPool pool)
+			throws DOMException, IOException {
+		return submit(sheets, pool).await();
+	}
+
+	/**
+	 * Serialize the rules in the given sheets, and start re-parsing the
+	 * serializations in the given pool.
+	 * <p>
+	 * The check is completed by {@link PendingCheck#await()}, which must be called
+	 * from this same thread.
+	 * </p>
+	 * 
+	 * @param sheets the sheets.
+	 * @param pool   the pool.
+	 * @return the pending check.
+	 */
+	PendingCheck submit(StyleSheetList sheets, ForkJoinPool pool) {
+		PendingCheck check = new PendingCheck(sheets);
+		check.submit(pool);
+		return check;
+	}
+
+	private short checkRuleSerialization(RuleCheck check, int sheetIndex,
+			AbstractCSSStyleSheet sheet) throws DOMException {
+		short result = -1;
+		AbstractCSSRule rule = check.rule;
+		int ruleIndex = check.ruleIndex;
+		short ruleType = rule.getType();
+		if (ruleType == CSSRule.STYLE_RULE) {
+			StyleRule stylerule = (StyleRule) rule;
+			if (!checkMinification(stylerule, sheetIndex, ruleIndex, check)) {
+				result = ruleType;
+			}
+			// The declarations and the selectors are checked on the same reparse
+			if (!checkDeclarationRule(stylerule, sheetIndex, ruleIndex, sheet, check.reparsed)) {
+				result = ruleType;
+			}
+			if (!checkSelectors(stylerule, sheetIndex, ruleIndex, sheet, check.reparsed)) {
+				result = ruleType;
+			}
+			if (!checkDeclarationRule(stylerule, sheetIndex, ruleIndex, sheet,
+					check.reparsedMinified)) {
+				result = ruleType;
+			}
+		} else if (rule instanceof BaseCSSDeclarationRule) {
+			BaseCSSDeclarationRule declrule = (BaseCSSDeclarationRule) rule;
+			if (!checkDeclarationRule(declrule, sheetIndex, ruleIndex, sheet, check.reparsed)) {
+				result = ruleType;
+			}
+			if (!checkDeclarationRule(declrule, sheetIndex, ruleIndex, sheet,
+					check.reparsedMinified)) {
+				result = ruleType;
+			}
+		} else if (!checkRule(rule, sheetIndex, ruleIndex, sheet, check.reparsed)) {
+			result = ruleType;
+		}
+		return result;
+	}
+
+	private boolean checkMinification(StyleRule rule, int sheetIndex, int ruleIndex,
+			RuleCheck check) {
+		boolean result = true;
+		BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) rule.getStyle();
+		if (check.optimizeException != null) {
+			reporter.minifiedParseErrors(style.getCssText(), check.optimizeException.getMessage(),
+					context.createStyleRule().getStyleDeclarationErrorHandler());
+			check.optimizeException.printStackTrace();
+			return false;
+		}
+
+		/*
+		 * If no shorthand was built, the optimized text is the minified one, whose
+		 * reparse is checked with the rest of the rule (unless the rule had errors,
+		 * see RuleCheck.parse()).
+		 */
+		StyleRule stylerule = check.optimizedRule;
+		if (stylerule == null) {
+			return true;
+		}
+
+		String mini = check.optimizedText;
+		if (check.optimizedException != null) {
+			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, mini,
+					check.optimizedException.getMessage());
+			return false;
+		}
+		BaseCSSStyleDeclaration ministyle = (BaseCSSStyleDeclaration) stylerule.getStyle();
+		if (!style.equals(ministyle) && reportMinifiedStyleDiff(rule.getParentStyleSheet(),
+				ruleIndex, style, ministyle, mini)) {
+			result = false;
+		}
+		if (stylerule.getStyleDeclarationErrorHandler().hasErrors()
+				&& mini.indexOf('\ufffd') == -1) {
+			reporter.minifiedParseErrors(style.getCssText(), mini,
+					stylerule.getStyleDeclarationErrorHandler());
+			result = false;
+		}
+
+		return result;
+	}
+
+	private boolean reportMinifiedStyleDiff(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			BaseCSSStyleDeclaration style, BaseCSSStyleDeclaration otherstyle,
+			String serializedText) {
+		boolean foundDiff = false;
+		Diff<String> diff = style.diff(otherstyle);
+		String[] left = diff.getLeftSide();
+		String[] right = diff.getRightSide();
+		String[] different = diff.getDifferent();
+		if (left != null) {
+			for (String property : left) {
+				if (property.charAt(0) != '*' && property.charAt(property.length() - 1) != 0xfffd) {
+					reporter.minifiedMissingProperty(parent, ruleIndex, style.getCssText(),
+							serializedText, property, style.getPropertyValue(property));
+					foundDiff = true;
+				}
+			}
+		}
+		if (right != null) {
+			for (String property : right) {
+				reporter.minifiedExtraProperty(parent, ruleIndex, style.getCssText(),
+						serializedText, property, style.getPropertyValue(property));
+			}
+			foundDiff = true;
+		}
+
+		ValueComparator comp = new ValueComparator(style);
+		StyleValue value, minivalue;
+		if (different != null) {
+			for (String property : different) {
+				if (!comp.isNotDifferent(property, value = style.getPropertyCSSValue(property),
+						minivalue = otherstyle.getPropertyCSSValue(property))) {
+					String valueText = value.getCssText();
+					String prio = style.getPropertyPriority(property);
+					if (prio.length() != 0) {
+						valueText += "!" + prio;
+					}
+					String miniValueText = minivalue.getCssText();
+					prio = otherstyle.getPropertyPriority(property);
+					if (prio.length() != 0) {
+						miniValueText += "!" + prio;
+					}
+					reporter.minifiedDifferentValues(parent, ruleIndex, style.getCssText(),
+							serializedText, property, valueText, miniValueText);
+					foundDiff = true;
+				}
+			}
+		}
+
+		return foundDiff;
+	}
+
+	private boolean checkDeclarationRule(CSSDeclarationRule rule, int sheetIndex, int ruleIndex,
+			AbstractCSSStyleSheet sheet, ReparsedRule reparsed) {
+		boolean result = true;
+		BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) rule.getStyle();
+		String serializedText = reparsed.serializedText;
+		if (reparsed.exception != null) {
+			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, serializedText,
+					reparsed.exception.getMessage());
+			return false;
+		}
+		CSSDeclarationRule other = (CSSDeclarationRule) reparsed.rule;
+
+		if (other == null) {
+			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, serializedText,
+					"Invalid rule.");
+			return false;
+		}
+
+		BaseCSSStyleDeclaration otherStyle = (BaseCSSStyleDeclaration) other.getStyle();
+		if (!style.equals(otherStyle) && reportStyleDiff(rule.getParentStyleSheet(), ruleIndex,
+				style, otherStyle, serializedText)) {
+			result = false;
+		}
+
+		if (!rule.getStyleDeclarationErrorHandler().hasErrors()
+				&& other.getStyleDeclarationErrorHandler().hasErrors()) {
+			String original = style.getCssText();
+			if (original.indexOf('\ufffd') == -1) {
+				reporter.ruleReparseErrors(original, otherStyle.getCssText(),
+						rule.getStyleDeclarationErrorHandler());
+				result = false;
+			}
+		}
+		return result;
+	}
+
+	private boolean checkSelectors(StyleRule stylerule, int sheetIndex, int ruleIndex,
+			AbstractCSSStyleSheet sheet, ReparsedRule reparsed) throws DOMException {
+		if (reparsed.exception != null) {
+			throw reparsed.exception;
+		}
+		SelectorList selist = stylerule.getSelectorList();
+		StyleRule orule = (StyleRule) reparsed.rule;
+
+		SelectorList oselist = null;
+		String oseltext = null;
+		boolean result = false;
+		if (orule != null) {
+			oselist = orule.getSelectorList();
+			oseltext = orule.getSelectorText();
+			result = ParseHelper.equalSelectorList(selist, oselist);
+		}
+		if (!result) {
+			reporter.ruleSelectorError(stylerule, selist, oselist, oseltext,
+					sheetIndex, ruleIndex, sheet);
+		}
+		return result;
+	}
+
+	private boolean reportStyleDiff(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
+			BaseCSSStyleDeclaration style, BaseCSSStyleDeclaration otherStyle, String parsedText) {
+		Diff<String> diff = style.diff(otherStyle);
+		if (!diff.hasDifferences()) {
+			return false;
+		}
+
+		boolean result = false;
+		String[] left = diff.getLeftSide();
+		String[] right = diff.getRightSide();
+		String[] different = diff.getDifferent();
+		if (left != null) {
+			for (String property : left) {
+				if (property.charAt(0) != '*' && property.charAt(property.length() - 1) != 0xfffd) {
+					reporter.reparsedMissingProperty(parent, ruleIndex, parsedText,
+							otherStyle.getCssText(), property, style.getPropertyValue(property));
+					result = true;
+				}
+			}
+		}
+
+		if (right != null) {
+			for (String property : right) {
+				reporter.reparsedExtraProperty(parent, ruleIndex, parsedText,
+						otherStyle.getCssText(), property, style.getPropertyValue(property));
+			}
+			result = true;
+		}
+
+		StyleValue value, reparsedValue;
+		if (different != null) {
+			ValueComparator comp = new ValueComparator(style);
+			for (String property : different) {
+				if (!comp.isNotDifferent(property, value = style.getPropertyCSSValue(property),
+						reparsedValue = otherStyle.getPropertyCSSValue(property))) {
+					String valueText = value.getCssText();
+					String prio = style.getPropertyPriority(property);
+					if (prio.length() != 0) {
+						valueText += "!" + prio;
+					}
+					String reparsedValueText = reparsedValue.getCssText();
+					prio = otherStyle.getPropertyPriority(property);
+					if (prio.length() != 0) {
+						reparsedValueText += "!" + prio;
+					}
+					reporter.reparsedDifferentValues(parent, ruleIndex, parsedText,
+							otherStyle.getCssText(), property, valueText, reparsedValueText);
+					result = true;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private boolean checkRule(AbstractCSSRule rule, int sheetIndex, int ruleIndex,
+			AbstractCSSStyleSheet sheet, ReparsedRule reparsed) {
+		String parsedText = reparsed.serializedText;
+		if (reparsed.exception != null) {
+			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, parsedText,
+					reparsed.exception.getMessage());
+			return false;
+		}
+		AbstractCSSRule other = reparsed.rule;
+
+		if (!rule.equals(other) && !rule.getCssText().equals(other.getCssText())) {
+			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, parsedText,
+					other.getCssText());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * A check of the rules in some sheets, whose serializations may be being
+	 * re-parsed in a pool.
+	 */
+	class PendingCheck {
+
+		private final List<SheetCheck> sheetChecks = new ArrayList<>();
+
+		/**
+		 * The checks of all the rules, in document order.
+		 */
+		private final List<RuleCheck> ruleChecks = new ArrayList<>();
+
+		private final List<Shard> shards = new ArrayList<>();
+
+		/**
+		 * The parse contexts that are not in use by a running shard.
+		 */
+		private final ConcurrentLinkedQueue<ParseContext> contexts = new ConcurrentLinkedQueue<>();
+
+		private volatile boolean cancelled = false;
+
+		/**
+		 * The first failure found while serializing or re-parsing.
+		 */
+		private Throwable failure = null;
+
+		/**
+		 * Serialize the rules in the given sheets.
+		 * <p>
+		 * If a rule cannot be serialized, the rules that precede it are still
+		 * checked, and the failure is thrown once they are.
+		 * </p>
+		 * 
+		 * @param sheets the sheets.
+		 */
+		private PendingCheck(StyleSheetList sheets) {
+			super();
+			int len = sheets.getLength();
+			SheetCheck sheetCheck = null;
+			try {
+				for (int i = 0; i < len; i++) {
+					AbstractCSSStyleSheet sheet = sheets.item(i);
+					String key = verdictKey(sheet);
+					if (key != null && verdicts.isClean(key)) {
+						continue;
+					}
+					sheetCheck = new SheetCheck(sheet, i, key);
+					sheetChecks.add(sheetCheck);
+					addRuleChecks(sheetCheck, sheet.getCssRules());
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+				if (sheetCheck != null) {
+					sheetCheck.clean = false;
+				}
+			}
+		}
+
+		private void addRuleChecks(SheetCheck sheetCheck, CSSRuleArrayList rules) {
+			int rulen = rules.getLength();
+			for (int j = 0; j < rulen; j++) {
+				AbstractCSSRule rule = rules.item(j);
+				if (rule instanceof GroupingRule) {
+					addRuleChecks(sheetCheck, ((GroupingRule) rule).getCssRules());
+				} else if (rule.getType() != CSSRule.NAMESPACE_RULE) {
+					RuleCheck check = new RuleCheck(rule, j);
+					sheetCheck.ruleChecks.add(check);
+					ruleChecks.add(check);
+				}
+			}
+		}
+
+		/**
+		 * Re-parse the serializations on this thread.
+		 * 
+		 * @param context the parse context.
+		 */
+		private void parse(ParseContext context) {
+			try {
+				for (RuleCheck check : ruleChecks) {
+					check.parse(context);
+				}
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		private void submit(ForkJoinPool pool) {
+			int size = ruleChecks.size();
+			for (int from = 0; from < size; from += SHARD_SIZE) {
+				Shard shard = new Shard(this,
+						ruleChecks.subList(from, Math.min(size, from + SHARD_SIZE)));
+				shard.task = pool.submit(shard);
+				shards.add(shard);
+			}
+		}
+
+		/**
+		 * Wait for the serializations to be re-parsed, and compare the results to
+		 * the original rules.
+		 * 
+		 * @return {@code -1} if no issues were found, otherwise the type of a rule
+		 *         that had issues ({@code STYLE_RULE} if a style rule had issues).
+		 * @throws DOMException if a rule could not be re-parsed.
+		 * @throws IOException  if an I/O error happened, or the thread was
+		 *                      interrupted.
+		 */
+		short await() throws DOMException, IOException {
+			// Wait for all the shards, so the reports do not depend on which one failed
+			for (Shard shard : shards) {
+				try {
+					shard.task.get();
+				} catch (InterruptedException e) {
+					// ForkJoinTask.cancel() does not interrupt, so the shards check the flag
+					cancelled = true;
+					for (Shard pending : shards) {
+						pending.task.cancel(false);
+					}
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while checking rule serializations", e);
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+			return complete();
+		}
+
+		private short complete() throws DOMException, IOException {
+			short result = -1;
+			for (SheetCheck sheetCheck : sheetChecks) {
+				short sheetResult = sheetCheck.complete();
+				if (sheetResult != -1) {
+					result = sheetResult;
+				}
+			}
+
+			if (failure != null) {
+				if (failure instanceof IOException) {
+					throw (IOException) failure;
+				} else if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				} else if (failure instanceof Error) {
+					throw (Error) failure;
+				}
+				throw new IOException(failure);
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * The rules of a sheet that are checked.
+	 */
+	private class SheetCheck {
+
+		private final AbstractCSSStyleSheet sheet;
+
+		private final int sheetIndex;
+
+		/**
+		 * The verdict key, or {@code null} if no verdict is recorded.
+		 */
+		private final String key;
+
+		private final List<RuleCheck> ruleChecks = new ArrayList<>();
+
+		boolean clean = true;
+
+		SheetCheck(AbstractCSSStyleSheet sheet, int sheetIndex, String key) {
+			super();
+			this.sheet = sheet;
+			this.sheetIndex = sheetIndex;
+			this.key = key;
+		}
+
+		short complete() throws DOMException {
+			if (key == null) {
+				return compare(reporter);
+			}
+			DeferredSiteErrorReporter sheetReporter = new DeferredSiteErrorReporter();
+			short result;
+			try {
+				result = compare(sheetReporter);
+			} finally {
+				sheetReporter.replay(reporter);
+			}
+			if (result == -1 && clean && sheetReporter.isEmpty()) {
+				verdicts.recordClean(key);
+			}
+			return result;
+		}
+
+		private short compare(SiteErrorReporter sheetReporter) throws DOMException {
+			RuleSerializationChecker checker = new RuleSerializationChecker(sheetReporter,
+					parserFlags, context);
+			short result = -1;
+			for (RuleCheck check : ruleChecks) {
+				// Not re-parsed because of a failure
+				if (!check.parsed) {
+					clean = false;
+					continue;
+				}
+				short ruleResult = checker.checkRuleSerialization(check, sheetIndex, sheet);
+				if (ruleResult != -1) {
+					result = ruleResult;
+				}
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * The serializations of a rule, obtained on the thread that owns the sheet,
+	 * and their re-parsed rules.
+	 */
+	private static class RuleCheck {
+
+		final AbstractCSSRule rule;
+
+		final int ruleIndex;
+
+		private final String cssText;
+
+		/**
+		 * The minified serialization, if this is a declaration rule.
+		 */
+		private final String minifiedText;
+
+		/**
+		 * The optimized serialization of the declarations, if this is a style rule.
+		 */
+		String optimizedText = null;
+
+		Exception optimizeException = null;
+
+		ReparsedRule reparsed = null;
+
+		ReparsedRule reparsedMinified = null;
+
+		/**
+		 * The rule whose declarations were set from the optimized serialization, if
+		 * it is not the minified one.
+		 */
+		StyleRule optimizedRule = null;
+
+		DOMException optimizedException = null;
+
+		/**
+		 * Whether the declarations of the original rule had errors.
+		 */
+		private boolean declarationErrors = false;
+
+		boolean parsed = false;
+
+		RuleCheck(AbstractCSSRule rule, int ruleIndex) {
+			super();
+			this.rule = rule;
+			this.ruleIndex = ruleIndex;
+			cssText = rule.getCssText();
+			if (rule instanceof BaseCSSDeclarationRule) {
+				minifiedText = rule.getMinifiedCssText();
+				declarationErrors = ((BaseCSSDeclarationRule) rule)
+						.getStyleDeclarationErrorHandler().hasErrors();
+				if (rule.getType() == CSSRule.STYLE_RULE) {
+					BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) ((StyleRule) rule)
+							.getStyle();
+					try {
+						optimizedText = CSSOMBridge.getOptimizedCssText(style);
+					} catch (Exception e) {
+						optimizeException = e;
+					}
+				}
+			} else {
+				minifiedText = null;
+			}
+		}
+
+		/**
+		 * Re-parse the serializations, without using the original rule.
+		 * 
+		 * @param context the parse context.
+		 */
+		void parse(ParseContext context) {
+			reparsed = context.reparse(cssText);
+			if (minifiedText != null) {
+				reparsedMinified = context.reparse(minifiedText);
+			}
+			/*
+			 * When the optimized text is the minified one, the reparse of the latter
+			 * reports its errors, unless the original rule had errors too. In that case
+			 * the optimized text is parsed anyway, so its errors are reported by the
+			 * minification check.
+			 */
+			if (optimizedText != null
+					&& (declarationErrors || !optimizedText.equals(minifiedText))) {
+				optimizedRule = context.createStyleRule();
+				try {
+					((BaseCSSStyleDeclaration) optimizedRule.getStyle()).setCssText(optimizedText);
+				} catch (DOMException e) {
+					optimizedException = e;
+				}
+			}
+			parsed = true;
+		}
+
+	}
+
+	/**
+	 * The outcome of parsing a serialized rule.
+	 */
+	private static class ReparsedRule {
+
+		final String serializedText;
+
+		/**
+		 * The parsed rule, or {@code null} if the text could not be parsed.
+		 */
+		final AbstractCSSRule rule;
+
+		final DOMException exception;
+
+		ReparsedRule(String serializedText, AbstractCSSRule rule, DOMException exception) {
+			super();
+			this.serializedText = serializedText;
+			this.rule = rule;
+			this.exception = exception;
+		}
+
+	}
+
+	/**
+	 * The DOM implementation used to re-parse the serializations, which must be
+	 * confined to a thread.
+	 */
+	private static class ParseContext {
+
+		private final CSSDOMImplementation domImpl;
+
+		/**
+		 * The sheet that creates the detached style rules.
+		 */
+		private AbstractCSSStyleSheet ruleSheet = null;
+
+		ParseContext(EnumSet<Parser.Flag> parserFlags) {
+			super();
+			domImpl = new CSSDOMImplementation(parserFlags);
+		}
+
+		/**
+		 * Create a detached style rule, so the sheets being checked are not used.
+		 * 
+		 * @return the new rule.
+		 */
+		StyleRule createStyleRule() {
+			if (ruleSheet == null) {
+				ruleSheet = domImpl.createStyleSheet(null, null);
+			}
+			return ruleSheet.createStyleRule();
+		}
+
+		/**
+		 * Parse a serialized rule, keeping the outcome for all the checks that need
+		 * it.
+		 * 
+		 * @param serializedText the serialized rule.
+		 * @return the outcome of the parse.
+		 */
+		ReparsedRule reparse(String serializedText) {
+			try {
+				return new ReparsedRule(serializedText, parseRule(serializedText), null);
+			} catch (DOMException e) {
+				return new ReparsedRule(serializedText, null, e);
+			}
+		}
+
+		/**
+		 * Parse a serialized rule into a sheet of its own, so that it remains valid
+		 * until the comparison.
+		 * 
+		 * @param serializedText the serialized rule.
+		 * @return the rule, or {@code null} if no rule was parsed.
+		 * @throws DOMException if the text could not be parsed.
+		 */
+		private AbstractCSSRule parseRule(String serializedText) throws DOMException {
+			AbstractCSSStyleSheet sheet = domImpl.createStyleSheet(null, null);
+			sheet.setErrorHandler(new ExceptionErrorHandler());
+			try {
+				sheet.parseStyleSheet(new StringReader(serializedText));
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return sheet.getCssRules().item(0);
+		}
+
+	}
+
+	/**
+	 * A range of rule checks, whose serializations are re-parsed in a pool with a
+	 * parse context of the pending check.
+	 */
+	private class Shard implements Callable<Void> {
+
+		private final PendingCheck check;
+
+		private final List<RuleCheck> ruleChecks;
+
+		ForkJoinTask<Void> task;
+
+		Shard(PendingCheck check, List<RuleCheck> ruleChecks) {
+			super();
+			this.check = check;
+			this.ruleChecks = ruleChecks;
+		}
+
+		@Override
+		public Void call() {
+			ParseContext context = check.contexts.poll();
+			if (context == null) {
+				context = new ParseContext(parserFlags);
+			}
+			try {
+				for (RuleCheck ruleCheck : ruleChecks) {
+					if (check.cancelled) {
+						throw new CancellationException("Rule serialization check cancelled");
+					}
+					ruleCheck.parse(context);
+				}
+				return null;
+			} finally {
+				check.contexts.offer(context);
+			}
+		}
+
+	}
+
+}
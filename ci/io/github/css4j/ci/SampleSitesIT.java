@@ -16,36 +16,47 @@ import static org.junit.Assert.assertNotNull;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,29 +97,24 @@ import io.sf.carte.doc.style.css.ErrorHandler;
 import io.sf.carte.doc.style.css.StyleDeclarationErrorHandler;
 import io.sf.carte.doc.style.css.nsac.Parser;
 import io.sf.carte.doc.style.css.nsac.Selector;
-import io.sf.carte.doc.style.css.nsac.SelectorList;
 import io.sf.carte.doc.style.css.om.AbstractCSSRule;
 import io.sf.carte.doc.style.css.om.AbstractCSSStyleSheet;
-import io.sf.carte.doc.style.css.om.BaseCSSDeclarationRule;
 import io.sf.carte.doc.style.css.om.BaseCSSStyleDeclaration;
-import io.sf.carte.doc.style.css.om.BaseCSSStyleSheet;
-import io.sf.carte.doc.style.css.om.CSSOMBridge;
 import io.sf.carte.doc.style.css.om.CSSRuleArrayList;
 import io.sf.carte.doc.style.css.om.ComputedCSSStyle;
 import io.sf.carte.doc.style.css.om.DOMCSSStyleSheetFactory;
 import io.sf.carte.doc.style.css.om.DefaultErrorHandler;
 import io.sf.carte.doc.style.css.om.DefaultSheetErrorHandler;
 import io.sf.carte.doc.style.css.om.DummyDeviceFactory;
-import io.sf.carte.doc.style.css.om.GroupingRule;
 import io.sf.carte.doc.style.css.om.StylableDocumentWrapper;
-import io.sf.carte.doc.style.css.om.StyleRule;
 import io.sf.carte.doc.style.css.om.StyleSheetList;
-import io.sf.carte.doc.style.css.parser.ParseHelper;
 import io.sf.carte.doc.style.css.property.CSSPropertyValueException;
 import io.sf.carte.doc.style.css.property.PropertyDatabase;
 import io.sf.carte.doc.style.css.property.StyleValue;
-import io.sf.carte.doc.style.css.util.ExceptionErrorHandler;
+import io.sf.carte.net.EvictionPolicy;
 import io.sf.carte.net.NetCache;
+import io.sf.carte.net.ResourceSnapshot;
+import io.sf.carte.net.StorageCodec;
 import io.sf.carte.util.Diff;
 import nu.validator.htmlparser.common.XmlViolationPolicy;
 import nu.validator.htmlparser.sax.HtmlParser;
@@ -134,6 +140,24 @@ import nu.validator.htmlparser.sax.HtmlParser;
  * <pre>
  * fail-on-warning=true|false
  * cache.dir=&lt;/path/to/cache/directory&gt;
+ * cache.packed=true|false
+ * cache.mmap=true|false
+ * cache.codec=none|gzip|deflate
+ * cache.dedup=true|false
+ * cache.streaming=true|false
+ * cache.prefetch=true|false
+ * prefetch.threads=&lt;number&gt;
+ * sites.threads=&lt;number&gt;
+ * sites.snapshot=true|false
+ * compute.max-elements=&lt;number&gt;
+ * compute.max-millis=&lt;milliseconds&gt;
+ * compare.hashing=true|false
+ * serialization.threads=&lt;number&gt;
+ * serialization.memo=true|false
+ * cache.max-bytes=&lt;size&gt;
+ * cache.max-host-bytes=&lt;size&gt;
+ * cache.eviction=lru|lfu
+ * cache.expire=true|false
  * reporter=log|tree
  * sites.file=&lt;samplesites.txt&gt;
  * dom.strict-error-checking=true|false
@@ -144,6 +168,55 @@ import nu.validator.htmlparser.sax.HtmlParser;
  * warnings were logged.</li>
  * <li>'cache.dir': the path to the directory where the network cache can store
  * its files.</li>
+ * <li>'cache.packed': if set to 'true', the cache entries are appended to large
+ * segment files instead of being stored one file per URL. Default is
+ * 'false'.</li>
+ * <li>'cache.mmap': if set to 'true', cached entries are read through a buffer
+ * (memory-mapped for large entries) instead of a file stream. Default is
+ * 'false'.</li>
+ * <li>'cache.codec': the codec used to store the body of new cache entries:
+ * 'none', 'gzip' or 'deflate' (faster than gzip, at a lower compression
+ * ratio). Default is 'none'.</li>
+ * <li>'cache.dedup': if set to 'true', identical bodies served from different
+ * URLs are stored only once. Default is 'false'.</li>
+ * <li>'cache.streaming': if set to 'true', resources that are not cached are
+ * parsed while they are downloaded and stored. Default is 'false'.</li>
+ * <li>'cache.prefetch': if set to 'true', all the documents in the site list and
+ * their style sheets are retrieved into the cache before the tests start, with
+ * several concurrent connections. Default is 'false'.</li>
+ * <li>'prefetch.threads': the maximum number of concurrent connections used by
+ * the prefetch. Default is '8'.</li>
+ * <li>'sites.threads': the number of sites that are tested concurrently. Each
+ * site has its own user agents and reporter. Default is '1'.</li>
+ * <li>'sites.snapshot': if set to 'true', the document and style sheets of a
+ * site are retrieved once and held in memory, and all the backends are served
+ * the same copy. Default is 'true'.</li>
+ * <li>'compute.max-elements' and 'compute.max-millis': the budget for the
+ * computed style check of a site, in elements and milliseconds. When the budget
+ * is exhausted the check stops, without failing. Default is '0' (unlimited)
+ * elements and '60000' milliseconds ('0' is unlimited).</li>
+ * <li>'compare.hashing': if set to 'true', the rule lists of the backends are
+ * compared by hashes of blocks of rules first, and only the rules in blocks with
+ * different hashes are compared one by one. It is faster with large sheets, but
+ * a hash collision could hide a difference. Default is 'false'.</li>
+ * <li>'serialization.threads': the size of the fork/join pool where the rule
+ * serializations are re-parsed, in shards of rules, while the backends are
+ * compared. Default is '1'.</li>
+ * <li>'serialization.memo': if set to 'true', the style sheets whose rule
+ * serializations were verified without issues are remembered in the cache
+ * directory (keyed by their source, the css4j version and the parser flags),
+ * and are not checked again in later runs. The source of linked sheets is only
+ * known with 'sites.snapshot' enabled. Default is 'false'.</li>
+ * <li>'cache.max-bytes' and 'cache.max-host-bytes': the maximum size in bytes
+ * of the cache entries, for the whole cache and for each host. When set, a
+ * background task evicts the entries that exceed them. Default is unlimited
+ * ('0').</li>
+ * <li>'cache.eviction': the order in which the entries are evicted, least
+ * recently used ('lru') or least frequently used ('lfu'). Default is
+ * 'lru'.</li>
+ * <li>'cache.expire': if set to 'true', the background eviction also removes the
+ * entries which are stale according to their 'Cache-Control' or 'Expires'
+ * headers. Default is 'false'.</li>
  * <li>'reporter': the type of site error reporter to be used. Default is
  * 'log'.</li>
  * <li>'cache.refresh': if set to 'true', refreshes the files in the cache.
@@ -156,7 +229,7 @@ import nu.validator.htmlparser.sax.HtmlParser;
  * <li>'parser.&lt;flag&gt;': to set the relevant NSAC parser flags.</li>
  * </ul>
  */
-@RunWith(Parameterized.class)
+@RunWith(ParallelParameterized.class)
 public class SampleSitesIT {
 
 	final static Logger log = LoggerFactory.getLogger(SampleSitesIT.class.getName());
@@ -166,10 +239,26 @@ public class SampleSitesIT {
 	private static final boolean failOnWarning;
 	private static final int errorReporterType;
 	private static final boolean forceCacheRefresh;
+	private static final boolean prefetch;
+	private static final int prefetchThreads;
+	private static final int siteThreads;
+	private static final boolean siteSnapshot;
+	private static final int computeMaxElements;
+	private static final long computeMaxMillis;
+	private static final boolean hashComparison;
+	private static final ForkJoinPool serializationPool;
+	private static final SerializationVerdictStore serializationVerdicts;
+	private static volatile boolean prefetched = false;
 	private static final String urlsFilename;
 
 	private static final EnumSet<Parser.Flag> parserFlags = EnumSet.noneOf(Parser.Flag.class);
 
+	/**
+	 * Runs the tasks that a site test performs concurrently to its own thread,
+	 * like loading the DOM4J document.
+	 */
+	private static final ExecutorService backgroundExecutor = createBackgroundExecutor();
+
 	static {
 		Properties config = new Properties();
 		try (Reader re = loadFileFromClasspath("samplesites.properties");) {
@@ -181,7 +270,39 @@ public class SampleSitesIT {
 		if (s != null) {
 			cachedir = new File(s);
 			if (cachedir.isDirectory()) {
-				netcache = new NetCache(cachedir);
+				boolean packed = "true".equalsIgnoreCase(config.getProperty("cache.packed", "false"));
+				try {
+					netcache = new NetCache(cachedir, packed);
+				} catch (IOException e) {
+					log.error("Unable to open the cache at " + cachedir.getAbsolutePath(), e);
+				}
+				if (packed) {
+					log.info("Using packed cache.");
+				}
+				if (netcache != null
+						&& "true".equalsIgnoreCase(config.getProperty("cache.mmap", "false"))) {
+					netcache.setMemoryMapped(true);
+					log.info("Reading cache entries through memory-mapped buffers.");
+				}
+				s = config.getProperty("cache.codec");
+				if (netcache != null && s != null) {
+					try {
+						netcache.setStorageCodec(StorageCodec.forName(s));
+					} catch (IllegalArgumentException e) {
+						log.error("Unknown cache codec: " + s);
+					}
+				}
+				if (netcache != null
+						&& "true".equalsIgnoreCase(config.getProperty("cache.dedup", "false"))) {
+					netcache.setDeduplicated(true);
+				}
+				if (netcache != null
+						&& "true".equalsIgnoreCase(config.getProperty("cache.streaming", "false"))) {
+					netcache.setStreaming(true);
+				}
+				if (netcache != null) {
+					configureEviction(config);
+				}
 			}
 		}
 
@@ -246,6 +367,89 @@ public class SampleSitesIT {
 		if (forceCacheRefresh) {
 			log.info("Forcing cache refresh.");
 		}
+
+		prefetch = netcache != null
+				&& "true".equalsIgnoreCase(config.getProperty("cache.prefetch", "false"));
+		int threads = 8;
+		s = config.getProperty("prefetch.threads");
+		if (s != null) {
+			try {
+				threads = Math.max(1, Integer.parseInt(s.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid prefetch.threads: " + s);
+			}
+		}
+		prefetchThreads = threads;
+
+		threads = 1;
+		s = config.getProperty("sites.threads");
+		if (s != null) {
+			try {
+				threads = Math.max(1, Integer.parseInt(s.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid sites.threads: " + s);
+			}
+		}
+		siteThreads = threads;
+		if (siteThreads > 1) {
+			log.info("Testing " + siteThreads + " sites concurrently.");
+		}
+
+		siteSnapshot = "true".equalsIgnoreCase(config.getProperty("sites.snapshot", "true"));
+
+		int maxElements = 0;
+		s = config.getProperty("compute.max-elements");
+		if (s != null) {
+			try {
+				maxElements = Math.max(0, Integer.parseInt(s.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid compute.max-elements: " + s);
+			}
+		}
+		computeMaxElements = maxElements;
+
+		long millis = 60000;
+		s = config.getProperty("compute.max-millis");
+		if (s != null) {
+			try {
+				millis = Math.max(0, Long.parseLong(s.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid compute.max-millis: " + s);
+			}
+		}
+		computeMaxMillis = millis;
+
+		hashComparison = "true".equalsIgnoreCase(config.getProperty("compare.hashing", "false"));
+
+		int serializationThreads = 1;
+		s = config.getProperty("serialization.threads");
+		if (s != null) {
+			try {
+				serializationThreads = Math.max(1, Integer.parseInt(s.trim()));
+			} catch (NumberFormatException e) {
+				log.error("Invalid serialization.threads: " + s);
+			}
+		}
+		// Even with one thread, the serializations are re-parsed while the site is compared
+		serializationPool = new ForkJoinPool(serializationThreads);
+		if (serializationThreads > 1) {
+			log.info("Checking rule serializations with " + serializationThreads + " threads.");
+		}
+
+		SerializationVerdictStore verdicts = null;
+		if ("true".equalsIgnoreCase(config.getProperty("serialization.memo", "false"))) {
+			if (cachedir != null && cachedir.isDirectory()) {
+				try {
+					verdicts = new SerializationVerdictStore(
+							new File(cachedir, SerializationVerdictStore.FILENAME), parserFlags);
+				} catch (IOException e) {
+					log.error("Unable to read the serialization verdicts", e);
+				}
+			} else {
+				log.warn("serialization.memo requires a cache.dir, ignoring.");
+			}
+		}
+		serializationVerdicts = verdicts;
 	}
 
 	HTMLDocument document;
@@ -256,8 +460,37 @@ public class SampleSitesIT {
 
 	SiteErrorReporter reporter;
 
+	/**
+	 * The resources of the site, shared by all the backends.
+	 */
+	private final ResourceSnapshot snapshot;
+
+	/**
+	 * The computed styles of the native elements for the current target medium,
+	 * shared by the DOM4J and DOM wrapper comparison passes.
+	 */
+	private final IdentityHashMap<DOMElement, ComputedCSSStyle> computedStyles = new IdentityHashMap<>();
+
+	/**
+	 * The hashes of the native rule lists, computed once for all the backends.
+	 */
+	private final IdentityHashMap<CSSRuleList<?>, RuleListHash> ruleListHashes = new IdentityHashMap<>();
+
+	/**
+	 * The selector indexes of the style sheets of each document, built when a
+	 * difference in computed styles has to be attributed to rules.
+	 */
+	private final IdentityHashMap<CSSDocument, SelectorIndex> selectorIndexes = new IdentityHashMap<>();
+
+	/**
+	 * The selector matches of the elements whose computed styles are being
+	 * compared.
+	 */
+	private final IdentityHashMap<CSSElement, IdentityHashMap<Selector, Boolean>> selectorMatches = new IdentityHashMap<>();
+
 	public SampleSitesIT(String uri) throws URISyntaxException, IOException {
 		super();
+		snapshot = siteSnapshot ? new ResourceSnapshot() : null;
 		agent = new MyDOMUserAgent();
 
 		if (!strictErrorChecking) {
@@ -280,6 +513,9 @@ public class SampleSitesIT {
 
 		reporter.startSiteReport(url);
 
+		// Both backends are independent until compared, so load them concurrently
+		Future<CSSDocument> dom4jFuture = backgroundExecutor.submit(() -> dom4jAgent.readURL(url));
+
 		try {
 			document = (HTMLDocument) agent.readURL(url);
 		} catch (DocumentException e) {
@@ -291,13 +527,55 @@ public class SampleSitesIT {
 		}
 
 		try {
-			dom4jdoc = dom4jAgent.readURL(url);
+			dom4jdoc = awaitDocument(dom4jFuture);
 		} catch (DocumentException e) {
 			e.printStackTrace();
 			reporter.fail("Error parsing to DOM4J", e);
 		}
 	}
 
+	private static CSSDocument awaitDocument(Future<CSSDocument> future)
+			throws DocumentException, IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading the DOM4J document", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DocumentException) {
+				throw (DocumentException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Create the executor for the background tasks, using virtual threads if the
+	 * JDK supports them.
+	 * 
+	 * @return the executor.
+	 */
+	private static ExecutorService createBackgroundExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+		}
+		return Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "site-task");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
 	/**
 	 * Constructor intended for unit testing of this class.
 	 */
@@ -310,6 +588,7 @@ public class SampleSitesIT {
 		dom4jAgent = null;
 		dom4jdoc = null;
 		reporter = null;
+		snapshot = null;
 	}
 
 	@Parameters
@@ -326,6 +605,71 @@ public class SampleSitesIT {
 		return sites;
 	}
 
+	/**
+	 * Get the number of sites that are tested concurrently.
+	 * 
+	 * @return the number of threads used to test the sites.
+	 */
+	static int getSiteThreads() {
+		return siteThreads;
+	}
+
+	private static void configureEviction(Properties config) {
+		EvictionPolicy policy = new EvictionPolicy();
+		try {
+			policy.setMaxBytes(Long.parseLong(config.getProperty("cache.max-bytes", "0").trim()));
+			policy.setMaxHostBytes(
+					Long.parseLong(config.getProperty("cache.max-host-bytes", "0").trim()));
+			policy.setOrder(EvictionPolicy.Order
+					.valueOf(config.getProperty("cache.eviction", "lru").trim().toUpperCase(Locale.ROOT)));
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid cache eviction configuration", e);
+			return;
+		}
+		policy.setExpireEnabled("true".equalsIgnoreCase(config.getProperty("cache.expire", "false")));
+		if (policy.getMaxBytes() > 0 || policy.getMaxHostBytes() > 0 || policy.isExpireEnabled()) {
+			netcache.setEvictionPolicy(policy);
+			log.info("Cache eviction enabled.");
+		}
+	}
+
+	/**
+	 * Retrieve the documents and style sheets into the cache, so the tests read
+	 * them at full speed.
+	 */
+	@BeforeClass
+	public static void prefetch() throws IOException, InterruptedException {
+		if (prefetch) {
+			List<String> uris = new ArrayList<>();
+			for (Object[] site : data()) {
+				uris.add((String) site[0]);
+			}
+			log.info("Prefetching " + uris.size() + " sites with " + prefetchThreads
+					+ " connections.");
+			ThreadLocal<OriginUserAgent> agents = ThreadLocal.withInitial(OriginUserAgent::new);
+			new CachePrefetcher(netcache, url -> agents.get().openOriginConnection(url),
+					forceCacheRefresh, prefetchThreads).prefetch(uris);
+			// The cache was already refreshed
+			prefetched = true;
+		}
+	}
+
+	@AfterClass
+	public static void closeCache() throws IOException {
+		backgroundExecutor.shutdown();
+		serializationPool.shutdown();
+		if (serializationVerdicts != null) {
+			try {
+				serializationVerdicts.save();
+			} catch (IOException e) {
+				log.error("Unable to save the serialization verdicts", e);
+			}
+		}
+		if (netcache != null) {
+			netcache.close();
+		}
+	}
+
 	private static Reader loadFileFromClasspath(final String filename) {
 		InputStream is = SampleSitesIT.class.getResourceAsStream(filename);
 
@@ -340,8 +684,114 @@ public class SampleSitesIT {
 	public void testSampleSites()
 			throws IOException, DocumentException, ParserConfigurationException {
 		/*
-		 * First, make a native-to-dom4j sheet comparison
+		 * The checks run as stages: the DOM4J comparison, the rule serialization
+		 * check, the DOM wrapper comparison and the computation of styles. Each
+		 * stage reports to its own buffer, and the buffers are replayed to the site
+		 * reporter in that order once the stages are done.
+		 * 
+		 * The native document is not thread-safe, so the stages that use it run in
+		 * sequence on this thread. The rules are serialized first, and their
+		 * serializations are re-parsed in the serialization pool while the other
+		 * stages run; the re-parsed rules are then compared here.
 		 */
+		SiteErrorReporter siteReporter = reporter;
+		DeferredSiteErrorReporter dom4jReporter = new DeferredSiteErrorReporter();
+		DeferredSiteErrorReporter serializationReporter = new DeferredSiteErrorReporter();
+		DeferredSiteErrorReporter wrapperReporter = new DeferredSiteErrorReporter();
+		DeferredSiteErrorReporter computeReporter = new DeferredSiteErrorReporter();
+		HTMLElement html = document.getDocumentElement();
+
+		RuleSerializationChecker serializationChecker = new RuleSerializationChecker(
+				serializationReporter, parserFlags);
+		serializationChecker.setVerdictStore(serializationVerdicts, this::sheetSource);
+		RuleSerializationChecker.PendingCheck serialization = null;
+		Throwable serializationError = null;
+		try {
+			serialization = serializationChecker.submit(document.getStyleSheets(),
+					serializationPool);
+		} catch (RuntimeException | Error e) {
+			serializationError = e;
+		}
+
+		boolean result = false;
+		String failMessage = null;
+		Throwable stageError = null;
+		try {
+			reporter = dom4jReporter;
+			compareToDOM4J(html);
+
+			reporter = wrapperReporter;
+			result = compareToWrapper(html);
+			if (!result) {
+				failMessage = "Different style sheets in backend: DOM wrapper.";
+			}
+
+			reporter = computeReporter;
+			checkComputedStyles(html);
+		} catch (IOException | RuntimeException | Error e) {
+			stageError = e;
+		} finally {
+			reporter = siteReporter;
+		}
+
+		// The serialization check is completed even if a stage failed
+		short reparseResult = -1;
+		if (serialization != null) {
+			try {
+				reparseResult = serialization.await();
+			} catch (IOException | RuntimeException | Error e) {
+				serializationError = e;
+			}
+		}
+
+		// Report everything that was found before throwing
+		dom4jReporter.replay(reporter);
+		serializationReporter.replay(reporter);
+		wrapperReporter.replay(reporter);
+		computeReporter.replay(reporter);
+		if (stageError != null) {
+			if (serializationError != null) {
+				stageError.addSuppressed(serializationError);
+			}
+			rethrow(stageError);
+		}
+		if (serializationError != null) {
+			rethrow(serializationError);
+		}
+
+		// Report style issues
+		if (document.hasStyleIssues()) {
+			StyleSheetList list = document.getStyleSheets();
+			if (findSheetErrors(list) || checkDocumentHandler(document) || failOnWarning) {
+				failMessage = "Sheet parsing had errors.";
+				result = false;
+			}
+		}
+
+		// Now it is time to fail on deferred reparse issues
+		if (reparseResult == CSSRule.STYLE_RULE) {
+			reporter.fail("Issues with style rules were detected. Check the logs for details.");
+		} else if (reparseResult != -1) {
+			reporter.fail("Serialization issues were detected (at least for rule type "
+					+ reparseResult + "). Check the logs for details.");
+		}
+
+		// DOM wrapper issues?
+		if (!result) {
+			reporter.fail(failMessage);
+		}
+
+		// Close the reporter
+		reporter.close();
+	}
+
+	/**
+	 * Compare the native document to the DOM4J one.
+	 * 
+	 * @param html the native document element.
+	 * @throws IOException if an I/O error happened.
+	 */
+	private void compareToDOM4J(HTMLElement html) throws IOException {
 		reporter.setSideDescriptions("Native implementation", "DOM4J backend");
 
 		boolean result = false;
@@ -354,25 +804,23 @@ public class SampleSitesIT {
 			reporter.fail("Different style sheets in backend: DOM4J.");
 		}
 
-		// Check rules (re-parse cssText serialization, including optimized serialization)
-		short reparseResult = checkRuleSerialization();
-		// Compare to DOM4J computed styles
-		HTMLElement html = document.getDocumentElement();
-		CSSElement dom4jHtml = dom4jdoc.getDocumentElement();
-
 		// Check DOM4J vs native DOM
-		int count;
-
+		CSSElement dom4jHtml = dom4jdoc.getDocumentElement();
 		try {
-			count = checkTree(html, dom4jHtml, dom4jdoc, "DOM4J", false, true);
+			checkTree(html, dom4jHtml, dom4jdoc, "DOM4J", false, true);
 		} catch (RuntimeException e) {
 			reporter.error("Error checking tree vs DOM4J.", e);
-			count = 0;
 		}
+	}
 
-		/*
-		 * Now compare native DOM to DOM Wrapper computed styles
-		 */
+	/**
+	 * Compare the native document to the DOM wrapper computed styles.
+	 * 
+	 * @param html the native document element.
+	 * @return {@code false} if the style sheets were different.
+	 * @throws IOException if an I/O error happened.
+	 */
+	private boolean compareToWrapper(HTMLElement html) throws IOException {
 		WrapperFactory factory = new WrapperFactory();
 		factory.getUserAgent().setOriginPolicy(DefaultOriginPolicy.getInstance());
 		factory.setDefaultHTMLUserAgentSheet();
@@ -380,15 +828,13 @@ public class SampleSitesIT {
 		// If DOM wrapper comparison fails, do not stop
 		CSSDocument wrappedHtml = factory.createCSSDocument(document);
 		reporter.setSideDescriptions("Native implementation", "DOM wrapper");
+		boolean result = false;
 		try {
 			result = compareSheets(wrappedHtml);
 		} catch (DOMException e) {
 			reporter.fail("Failed preparation of style sheets.", e);
 		}
-		String failMessage = null;
-		if (!result) {
-			failMessage = "Different style sheets in backend: DOM wrapper.";
-		} else {
+		if (result) {
 			try {
 				checkTree(html, wrappedHtml.getDocumentElement(), wrappedHtml, "DOM wrapper", true,
 						false);
@@ -396,49 +842,40 @@ public class SampleSitesIT {
 				reporter.error("Error checking tree vs DOM wrapper.", e);
 			}
 		}
+		return result;
+	}
 
-		// Check the computed styles unless the document is too big
+	/**
+	 * Check the computed styles, within the computation budget.
+	 * 
+	 * @param html the native document element.
+	 */
+	private void checkComputedStyles(HTMLElement html) {
 		try {
-			document.setTargetMedium("screen");
+			setTargetMedium("screen");
 		} catch (CSSMediaException e) {
 		}
-		if (count < 1000) {
-			boolean computeResult;
-			try {
-				computeResult = computeStyles(html);
-			} catch (RuntimeException e) {
-				reporter.fail("Runtime error computing styles.", e);
-				return;
-			}
-			if (!computeResult) {
-				reporter.fail("Error(s) computing styles.");
-			}
-		}
-
-		// Report style issues
-		if (document.hasStyleIssues()) {
-			StyleSheetList list = document.getStyleSheets();
-			if (findSheetErrors(list) || checkDocumentHandler(document) || failOnWarning) {
-				failMessage = "Sheet parsing had errors.";
-				result = false;
-			}
+		boolean computeResult;
+		try {
+			computeResult = computeStyles(html);
+		} catch (RuntimeException e) {
+			reporter.fail("Runtime error computing styles.", e);
+			return;
 		}
-
-		// Now it is time to fail on deferred reparse issues
-		if (reparseResult == CSSRule.STYLE_RULE) {
-			reporter.fail("Issues with style rules were detected. Check the logs for details.");
-		} else if (reparseResult != -1) {
-			reporter.fail("Serialization issues were detected (at least for rule type "
-					+ reparseResult + "). Check the logs for details.");
+		if (!computeResult) {
+			reporter.fail("Error(s) computing styles.");
 		}
+	}
 
-		// DOM wrapper issues?
-		if (!result) {
-			reporter.fail(failMessage);
+	private static void rethrow(Throwable e) throws IOException {
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
 		}
-
-		// Close the reporter
-		reporter.close();
+		throw new IOException(e);
 	}
 
 	private boolean findSheetErrors(StyleSheetList list) {
@@ -504,18 +941,8 @@ public class SampleSitesIT {
 				minlen = sheetlen;
 				leftHasMore = false;
 			}
-			List<CSSStyleSheet<? extends CSSRule>> missingSheets = new LinkedList<>();
-			outerloop: for (int i = 0; i < maxlen; i++) {
-				CSSStyleSheet<? extends CSSRule> csssheet = larger.item(i);
-				String href = csssheet.getHref();
-				for (int j = 0; j < minlen; j++) {
-					CSSStyleSheet<? extends CSSRule> othercsssheet = smaller.item(j);
-					if (isSameSheet(csssheet, href, othercsssheet)) {
-						continue outerloop;
-					}
-				}
-				missingSheets.add(csssheet);
-			}
+			List<CSSStyleSheet<? extends CSSRule>> missingSheets = missingSheets(larger, maxlen,
+					smaller, minlen);
 			if (leftHasMore) {
 				reporter.leftHasMoreSheets(missingSheets, smaller.getLength());
 			} else {
@@ -573,6 +1000,60 @@ public class SampleSitesIT {
 		return ret;
 	}
 
+	/**
+	 * Find the sheets of the larger list that have no counterpart in the smaller
+	 * one.
+	 * <p>
+	 * The smaller list is indexed by href and by a hash of the rules, matching how
+	 * {@link #isSameSheet(CSSStyleSheet, String, CSSStyleSheet)} compares sheets,
+	 * so each sheet is only compared to the candidates in its bucket.
+	 * </p>
+	 * 
+	 * @return the list of missing sheets.
+	 */
+	private List<CSSStyleSheet<? extends CSSRule>> missingSheets(
+			CSSStyleSheetList<? extends CSSRule> larger, int maxlen,
+			CSSStyleSheetList<? extends CSSRule> smaller, int minlen) {
+		HashMap<String, List<CSSStyleSheet<? extends CSSRule>>> byHref = new HashMap<>(minlen);
+		HashMap<Integer, List<CSSStyleSheet<? extends CSSRule>>> byRules = new HashMap<>(minlen);
+		for (int j = 0; j < minlen; j++) {
+			CSSStyleSheet<? extends CSSRule> othercsssheet = smaller.item(j);
+			byHref.computeIfAbsent(othercsssheet.getHref(), k -> new ArrayList<>(1))
+					.add(othercsssheet);
+			byRules.computeIfAbsent(rulesHash(othercsssheet), k -> new ArrayList<>(1))
+					.add(othercsssheet);
+		}
+
+		String documentURI = document.getDocumentURI();
+		List<CSSStyleSheet<? extends CSSRule>> missingSheets = new LinkedList<>();
+		outerloop: for (int i = 0; i < maxlen; i++) {
+			CSSStyleSheet<? extends CSSRule> csssheet = larger.item(i);
+			String href = csssheet.getHref();
+			List<CSSStyleSheet<? extends CSSRule>> candidates = href.equals(documentURI)
+					? byRules.get(rulesHash(csssheet))
+					: byHref.get(href);
+			if (candidates != null) {
+				for (CSSStyleSheet<? extends CSSRule> othercsssheet : candidates) {
+					if (isSameSheet(csssheet, href, othercsssheet)) {
+						continue outerloop;
+					}
+				}
+			}
+			missingSheets.add(csssheet);
+		}
+		return missingSheets;
+	}
+
+	private static int rulesHash(CSSStyleSheet<? extends CSSRule> sheet) {
+		CSSRuleList<? extends CSSRule> rules = sheet.getCssRules();
+		int n = rules.getLength();
+		int hash = n;
+		for (int i = 0; i < n; i++) {
+			hash = 31 * hash + rules.item(i).hashCode();
+		}
+		return hash;
+	}
+
 	private boolean isSameSheet(CSSStyleSheet<? extends CSSRule> csssheet, String href,
 			CSSStyleSheet<? extends CSSRule> othercsssheet) {
 		if (!href.equals(document.getDocumentURI())) {
@@ -602,18 +1083,89 @@ public class SampleSitesIT {
 					+ " vs " + orules.getLength());
 			return false;
 		}
+		if (hashComparison) {
+			return compareRuleBlocks(sheetIndex, rules, orules, ret);
+		}
 		for (int j = 0; j < n; j++) {
-			AbstractCSSRule rule = rules.item(j);
-			AbstractCSSRule orule = (AbstractCSSRule) orules.item(j);
-			if (!rule.equals(orule)) {
-				reporter.sideComparison("Different rules in sheet " + sheetIndex + ", rule " + j
-						+ ": " + rule.getCssText() + " vs " + orule.getCssText());
+			if (!compareRule(sheetIndex, j, rules.item(j), (AbstractCSSRule) orules.item(j))) {
 				ret = false;
 			}
 		}
 		return ret;
 	}
 
+	/**
+	 * Compare two rule lists of the same length by the hashes of their blocks of
+	 * rules, comparing the rules one by one only in the blocks whose hashes
+	 * differ.
+	 */
+	private boolean compareRuleBlocks(int sheetIndex, CSSRuleList<AbstractCSSRule> rules,
+			CSSRuleList<? extends CSSRule> orules, boolean ret) {
+		RuleListHash hash = ruleListHashes.get(rules);
+		if (hash == null) {
+			hash = new RuleListHash(rules);
+			ruleListHashes.put(rules, hash);
+		}
+		RuleListHash ohash = new RuleListHash(orules);
+		if (hash.listHash == ohash.listHash) {
+			return ret;
+		}
+
+		int n = rules.getLength();
+		for (int b = 0; b < hash.blockHashes.length; b++) {
+			if (hash.blockHashes[b] != ohash.blockHashes[b]) {
+				int end = Math.min(n, (b + 1) * RuleListHash.BLOCK_SIZE);
+				for (int j = b * RuleListHash.BLOCK_SIZE; j < end; j++) {
+					if (!compareRule(sheetIndex, j, rules.item(j),
+							(AbstractCSSRule) orules.item(j))) {
+						ret = false;
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private boolean compareRule(int sheetIndex, int ruleIndex, AbstractCSSRule rule,
+			AbstractCSSRule orule) {
+		if (!rule.equals(orule)) {
+			reporter.sideComparison("Different rules in sheet " + sheetIndex + ", rule "
+					+ ruleIndex + ": " + rule.getCssText() + " vs " + orule.getCssText());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The hashes of a rule list and of its blocks of rules.
+	 */
+	private static class RuleListHash {
+
+		static final int BLOCK_SIZE = 64;
+
+		final int listHash;
+
+		final int[] blockHashes;
+
+		RuleListHash(CSSRuleList<? extends CSSRule> rules) {
+			super();
+			int n = rules.getLength();
+			blockHashes = new int[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+			int hash = n;
+			for (int b = 0; b < blockHashes.length; b++) {
+				int end = Math.min(n, (b + 1) * BLOCK_SIZE);
+				int blockHash = 1;
+				for (int j = b * BLOCK_SIZE; j < end; j++) {
+					blockHash = 31 * blockHash + rules.item(j).hashCode();
+				}
+				blockHashes[b] = blockHash;
+				hash = 31 * hash + blockHash;
+			}
+			listHash = hash;
+		}
+
+	}
+
 	private boolean checkDocumentHandler(HTMLDocument document) {
 		DefaultErrorHandler eh = (DefaultErrorHandler) document.getErrorHandler();
 		if (eh.hasErrors()) {
@@ -664,318 +1216,6 @@ public class SampleSitesIT {
 		return false;
 	}
 
-	private short checkRuleSerialization() throws DOMException, IOException {
-		short result = -1;
-		StyleSheetList sheets = document.getStyleSheets();
-		int len = sheets.getLength();
-		for (int i = 0; i < len; i++) {
-			AbstractCSSStyleSheet sheet = sheets.item(i);
-			CSSRuleArrayList rules = sheet.getCssRules();
-			short ruleListResult = checkRuleListSerialization(rules, i, sheet);
-			if (ruleListResult != -1) {
-				result = ruleListResult;
-			}
-		}
-		return result;
-	}
-
-	private short checkRuleListSerialization(CSSRuleArrayList rules, int sheetIndex,
-			AbstractCSSStyleSheet sheet) throws DOMException, IOException {
-		short result = -1;
-		int rulen = rules.getLength();
-		for (int j = 0; j < rulen; j++) {
-			AbstractCSSRule rule = rules.item(j);
-			short ruleResult = checkRuleSerialization(rule, sheetIndex, j, sheet);
-			if (ruleResult != -1) {
-				result = ruleResult;
-			}
-		}
-		return result;
-	}
-
-	private short checkRuleSerialization(AbstractCSSRule rule, int sheetIndex, int ruleIndex,
-			AbstractCSSStyleSheet sheet) throws DOMException, IOException {
-		short result = -1;
-		short ruleType = rule.getType();
-		if (ruleType == CSSRule.STYLE_RULE) {
-			StyleRule stylerule = (StyleRule) rule;
-			if (!checkMinification(stylerule, sheetIndex, ruleIndex)) {
-				result = ruleType;
-			}
-			if (!checkDeclarationRule(stylerule, sheetIndex, ruleIndex, sheet, rule.getCssText())) {
-				result = ruleType;
-			}
-			if (!checkDeclarationRule(stylerule, sheetIndex, ruleIndex, sheet,
-					rule.getMinifiedCssText())) {
-				result = ruleType;
-			}
-			if (!checkSelectors(stylerule, sheetIndex, ruleIndex, sheet)) {
-				result = ruleType;
-			}
-		} else if (rule instanceof BaseCSSDeclarationRule) {
-			BaseCSSDeclarationRule declrule = (BaseCSSDeclarationRule) rule;
-			if (!checkDeclarationRule(declrule, sheetIndex, ruleIndex, sheet, rule.getCssText())) {
-				result = ruleType;
-			}
-			if (!checkDeclarationRule(declrule, sheetIndex, ruleIndex, sheet,
-					rule.getMinifiedCssText())) {
-				result = ruleType;
-			}
-		} else if (rule instanceof GroupingRule) {
-			short groupResult = checkGroupingRule((GroupingRule) rule, sheetIndex, ruleIndex,
-					sheet);
-			if (groupResult != -1) {
-				result = groupResult;
-			}
-		} else if (ruleType != CSSRule.NAMESPACE_RULE) {
-			if (!checkRule(rule, sheetIndex, ruleIndex, sheet)) {
-				result = ruleType;
-			}
-		}
-		return result;
-	}
-
-	private boolean checkMinification(StyleRule rule, int sheetIndex, int ruleIndex) {
-		boolean result = true;
-		BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) rule.getStyle();
-		StyleRule stylerule = rule.getParentStyleSheet().createStyleRule();
-		String mini;
-		try {
-			mini = CSSOMBridge.getOptimizedCssText(style);
-		} catch (Exception e) {
-			reporter.minifiedParseErrors(style.getCssText(), e.getMessage(),
-					stylerule.getStyleDeclarationErrorHandler());
-			e.printStackTrace();
-			return false;
-		}
-
-		BaseCSSStyleDeclaration ministyle = (BaseCSSStyleDeclaration) stylerule.getStyle();
-		try {
-			ministyle.setCssText(mini);
-		} catch (DOMException e) {
-			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, mini, e.getMessage());
-			return false;
-		}
-		if (!style.equals(ministyle) && reportMinifiedStyleDiff(rule.getParentStyleSheet(),
-				ruleIndex, style, ministyle, mini)) {
-			result = false;
-		}
-		if (stylerule.getStyleDeclarationErrorHandler().hasErrors()
-				&& mini.indexOf('\ufffd') == -1) {
-			reporter.minifiedParseErrors(style.getCssText(), mini,
-					stylerule.getStyleDeclarationErrorHandler());
-			result = false;
-		}
-
-		return result;
-	}
-
-	private boolean reportMinifiedStyleDiff(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
-			BaseCSSStyleDeclaration style, BaseCSSStyleDeclaration otherstyle,
-			String serializedText) {
-		boolean foundDiff = false;
-		Diff<String> diff = style.diff(otherstyle);
-		String[] left = diff.getLeftSide();
-		String[] right = diff.getRightSide();
-		String[] different = diff.getDifferent();
-		if (left != null) {
-			for (String property : left) {
-				if (property.charAt(0) != '*' && property.charAt(property.length() - 1) != 0xfffd) {
-					reporter.minifiedMissingProperty(parent, ruleIndex, style.getCssText(),
-							serializedText, property, style.getPropertyValue(property));
-					foundDiff = true;
-				}
-			}
-		}
-		if (right != null) {
-			for (String property : right) {
-				reporter.minifiedExtraProperty(parent, ruleIndex, style.getCssText(),
-						serializedText, property, style.getPropertyValue(property));
-			}
-			foundDiff = true;
-		}
-
-		ValueComparator comp = new ValueComparator(style);
-		StyleValue value, minivalue;
-		if (different != null) {
-			for (String property : different) {
-				if (!comp.isNotDifferent(property, value = style.getPropertyCSSValue(property),
-						minivalue = otherstyle.getPropertyCSSValue(property))) {
-					String valueText = value.getCssText();
-					String prio = style.getPropertyPriority(property);
-					if (prio.length() != 0) {
-						valueText += "!" + prio;
-					}
-					String miniValueText = minivalue.getCssText();
-					prio = otherstyle.getPropertyPriority(property);
-					if (prio.length() != 0) {
-						miniValueText += "!" + prio;
-					}
-					reporter.minifiedDifferentValues(parent, ruleIndex, style.getCssText(),
-							serializedText, property, valueText, miniValueText);
-					foundDiff = true;
-				}
-			}
-		}
-
-		return foundDiff;
-	}
-
-	private boolean checkDeclarationRule(CSSDeclarationRule rule, int sheetIndex, int ruleIndex,
-			AbstractCSSStyleSheet sheet, String serializedText) {
-		boolean result = true;
-		BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) rule.getStyle();
-		CSSDeclarationRule other;
-		try {
-			other = (CSSDeclarationRule) parseRule(serializedText);
-		} catch (DOMException e) {
-			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, serializedText,
-					e.getMessage());
-			return false;
-		}
-
-		if (other == null) {
-			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, serializedText,
-					"Invalid rule.");
-			return false;
-		}
-
-		BaseCSSStyleDeclaration otherStyle = (BaseCSSStyleDeclaration) other.getStyle();
-		if (!style.equals(otherStyle) && reportStyleDiff(rule.getParentStyleSheet(), ruleIndex,
-				style, otherStyle, serializedText)) {
-			result = false;
-		}
-
-		if (!rule.getStyleDeclarationErrorHandler().hasErrors()
-				&& other.getStyleDeclarationErrorHandler().hasErrors()) {
-			String original = style.getCssText();
-			if (original.indexOf('\ufffd') == -1) {
-				reporter.ruleReparseErrors(original, otherStyle.getCssText(),
-						rule.getStyleDeclarationErrorHandler());
-				result = false;
-			}
-		}
-		return result;
-	}
-
-	private AbstractCSSRule parseRule(String serializedText) throws DOMException {
-		AbstractCSSStyleSheet sheet = agent.getDOMImplementation().createStyleSheet(null, null);
-		sheet.setErrorHandler(new ExceptionErrorHandler());
-		try {
-			sheet.parseStyleSheet(new StringReader(serializedText));
-		} catch (IOException e) {
-			throw new IllegalStateException(e);
-		}
-		return sheet.getCssRules().item(0);
-	}
-
-	private boolean checkSelectors(StyleRule stylerule, int sheetIndex, int ruleIndex,
-			AbstractCSSStyleSheet sheet) {
-		SelectorList selist = stylerule.getSelectorList();
-		String cssText = stylerule.getCssText();
-		StyleRule orule = (StyleRule) parseRule(cssText);
-
-		SelectorList oselist = null;
-		String oseltext = null;
-		boolean result = false;
-		if (orule != null) {
-			oselist = orule.getSelectorList();
-			oseltext = orule.getSelectorText();
-			result = ParseHelper.equalSelectorList(selist, oselist);
-		}
-		if (!result) {
-			reporter.ruleSelectorError(stylerule, selist, oselist, oseltext,
-					sheetIndex, ruleIndex, sheet);
-		}
-		return result;
-	}
-
-	private short checkGroupingRule(GroupingRule rule, int sheetIndex, int ruleIndex,
-			AbstractCSSStyleSheet sheet) throws DOMException, IOException {
-		short result = -1;
-		short ruleListResult = checkRuleListSerialization(rule.getCssRules(), sheetIndex, sheet);
-		if (ruleListResult != -1) {
-			result = ruleListResult;
-		}
-		return result;
-	}
-
-	private boolean reportStyleDiff(CSSStyleSheet<? extends CSSRule> parent, int ruleIndex,
-			BaseCSSStyleDeclaration style, BaseCSSStyleDeclaration otherStyle, String parsedText) {
-		Diff<String> diff = style.diff(otherStyle);
-		if (!diff.hasDifferences()) {
-			return false;
-		}
-
-		boolean result = false;
-		String[] left = diff.getLeftSide();
-		String[] right = diff.getRightSide();
-		String[] different = diff.getDifferent();
-		if (left != null) {
-			for (String property : left) {
-				if (property.charAt(0) != '*' && property.charAt(property.length() - 1) != 0xfffd) {
-					reporter.reparsedMissingProperty(parent, ruleIndex, parsedText,
-							otherStyle.getCssText(), property, style.getPropertyValue(property));
-					result = true;
-				}
-			}
-		}
-
-		if (right != null) {
-			for (String property : right) {
-				reporter.reparsedExtraProperty(parent, ruleIndex, parsedText,
-						otherStyle.getCssText(), property, style.getPropertyValue(property));
-			}
-			result = true;
-		}
-
-		StyleValue value, reparsedValue;
-		if (different != null) {
-			ValueComparator comp = new ValueComparator(style);
-			for (String property : different) {
-				if (!comp.isNotDifferent(property, value = style.getPropertyCSSValue(property),
-						reparsedValue = otherStyle.getPropertyCSSValue(property))) {
-					String valueText = value.getCssText();
-					String prio = style.getPropertyPriority(property);
-					if (prio.length() != 0) {
-						valueText += "!" + prio;
-					}
-					String reparsedValueText = reparsedValue.getCssText();
-					prio = otherStyle.getPropertyPriority(property);
-					if (prio.length() != 0) {
-						reparsedValueText += "!" + prio;
-					}
-					reporter.reparsedDifferentValues(parent, ruleIndex, parsedText,
-							otherStyle.getCssText(), property, valueText, reparsedValueText);
-					result = true;
-				}
-			}
-		}
-
-		return result;
-	}
-
-	private boolean checkRule(AbstractCSSRule rule, int sheetIndex, int ruleIndex,
-			AbstractCSSStyleSheet sheet) {
-		String parsedText = rule.getCssText();
-		AbstractCSSRule other;
-		try {
-			other = parseRule(parsedText);
-		} catch (DOMException e) {
-			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, parsedText,
-					e.getMessage());
-			return false;
-		}
-
-		if (!rule.equals(other) && !rule.getCssText().equals(other.getCssText())) {
-			reporter.ruleReparseIssue(rule.getParentStyleSheet(), ruleIndex, parsedText,
-					other.getCssText());
-			return false;
-		}
-
-		return true;
-	}
-
 	private int checkTree(DOMElement elm, CSSElement otherdocElm, CSSDocument docToCompare,
 			String backendName, boolean ignoreNonCssHints, boolean compareAttributes)
 			throws IOException {
@@ -1099,11 +1339,39 @@ public class SampleSitesIT {
 		}
 	}
 
+	/**
+	 * Get the computed style of a native element, computing it only once for the
+	 * current target medium.
+	 * 
+	 * @param elm the native element.
+	 * @return the computed style.
+	 */
+	private ComputedCSSStyle computedStyle(DOMElement elm) {
+		ComputedCSSStyle style = computedStyles.get(elm);
+		if (style == null) {
+			style = elm.getComputedStyle(null);
+			computedStyles.put(elm, style);
+		}
+		return style;
+	}
+
+	/**
+	 * Set the target medium of the native document, discarding the computed
+	 * styles for the previous medium.
+	 * 
+	 * @param medium the medium.
+	 * @throws CSSMediaException if the medium is not supported.
+	 */
+	private void setTargetMedium(String medium) throws CSSMediaException {
+		computedStyles.clear();
+		document.setTargetMedium(medium);
+	}
+
 	private boolean compareComputedStyles(DOMElement elm, CSSElement otherdocElm,
 			CSSDocument docToCompare, String backendName, boolean ignoreNonCssHints) {
 		ComputedCSSStyle style;
 		try {
-			style = elm.getComputedStyle(null);
+			style = computedStyle(elm);
 		} catch (RuntimeException e) {
 			reporter.error("Exception computing style for " + elm.getStartTag(), e);
 			try {
@@ -1130,6 +1398,8 @@ public class SampleSitesIT {
 		boolean retval = true;
 		String failinfo = null;
 		if (!style.equals(otherStyle)) {
+			// Only the elements being compared are matched
+			selectorMatches.clear();
 			Diff<String> diff = style.diff((BaseCSSStyleDeclaration) otherStyle);
 			String[] left = diff.getLeftSide();
 			String[] right = diff.getRightSide();
@@ -1140,17 +1410,18 @@ public class SampleSitesIT {
 				if (!ignoreNonCssHints
 						|| elm.hasPresentationalHints() == otherdocElm.hasPresentationalHints()) {
 					sheets = document.getStyleSheets();
+					SelectorIndex index = selectorIndex(document);
 					for (String property : left) {
 						if (property.charAt(0) != '*'
 								&& property.charAt(property.length() - 1) != 0xfffd) {
 							for (int j = 0; j < sheets.getLength(); j++) {
 								String value = style.getPropertyValue(property);
 								CSSStyleSheet<? extends CSSRule> sheet = sheets.item(j);
-								Selector[] sel = ((BaseCSSStyleSheet) sheet)
-										.getSelectorsForPropertyValue(property, value);
+								Selector[] sel = index.getSelectorsForPropertyValue(j, property,
+										value);
 								if (sel != null) {
-									LinkedList<Selector> selectorList = new LinkedList<>();
-									LinkedList<Selector> unmatched = unmatchedSelectors(sel, elm,
+									List<Selector> selectorList = new ArrayList<>(sel.length);
+									List<Selector> unmatched = unmatchedSelectors(sel, elm,
 											otherdocElm, selectorList);
 									reporter.unmatchedLeftSelector(sheet, j, elm, property, value,
 											selectorList, unmatched);
@@ -1161,11 +1432,10 @@ public class SampleSitesIT {
 											+ ", selectors " + printSelectorList(selectorList);
 									retval = false;
 								} else {
-									sel = ((BaseCSSStyleSheet) sheet)
-											.getSelectorsForProperty(property);
+									sel = index.getSelectorsForProperty(j, property);
 									if (sel != null) {
-										LinkedList<Selector> selectorList = new LinkedList<>();
-										LinkedList<Selector> unmatched = unmatchedSelectors(sel,
+										List<Selector> selectorList = new ArrayList<>(sel.length);
+										List<Selector> unmatched = unmatchedSelectors(sel,
 												elm, otherdocElm, selectorList);
 										if (!unmatched.isEmpty()) {
 											reporter.unmatchedRightSelector(sheet, j, elm, property,
@@ -1191,15 +1461,15 @@ public class SampleSitesIT {
 			}
 			if (right != null) {
 				sheets = docToCompare.getStyleSheets();
+				SelectorIndex index = selectorIndex(docToCompare);
 				for (String property : right) {
 					for (int j = 0; j < sheets.getLength(); j++) {
 						CSSStyleSheet<? extends CSSRule> sheet = sheets.item(j);
 						String value = otherStyle.getPropertyValue(property);
-						Selector[] sel = ((BaseCSSStyleSheet) sheet)
-								.getSelectorsForPropertyValue(property, value);
+						Selector[] sel = index.getSelectorsForPropertyValue(j, property, value);
 						if (sel != null) {
-							LinkedList<Selector> selectorList = new LinkedList<>();
-							LinkedList<Selector> unmatched = unmatchedSelectors(sel, otherdocElm,
+							List<Selector> selectorList = new ArrayList<>(sel.length);
+							List<Selector> unmatched = unmatchedSelectors(sel, otherdocElm,
 									elm, selectorList);
 							reporter.unmatchedRightSelector(sheet, j, elm, property, value,
 									selectorList, unmatched);
@@ -1210,10 +1480,10 @@ public class SampleSitesIT {
 									+ ", selectors " + printSelectorList(selectorList);
 							retval = false;
 						} else {
-							sel = ((BaseCSSStyleSheet) sheet).getSelectorsForProperty(property);
+							sel = index.getSelectorsForProperty(j, property);
 							if (sel != null) {
-								LinkedList<Selector> selectorList = new LinkedList<>();
-								LinkedList<Selector> unmatched = unmatchedSelectors(sel,
+								List<Selector> selectorList = new ArrayList<>(sel.length);
+								List<Selector> unmatched = unmatchedSelectors(sel,
 										otherdocElm, elm, selectorList);
 								if (!unmatched.isEmpty()) {
 									reporter.unmatchedRightSelector(sheet, j, elm, property, value,
@@ -1240,15 +1510,16 @@ public class SampleSitesIT {
 				diff = style.diff((BaseCSSStyleDeclaration) otherStyle);
 				sheets = document.getStyleSheets();
 				CSSStyleSheetList<? extends CSSRule> otherSheets = docToCompare.getStyleSheets();
+				SelectorIndex index = selectorIndex(document);
+				SelectorIndex otherIndex = selectorIndex(docToCompare);
 				for (String property : different) {
 					String value = style.getPropertyValue(property);
 					for (int j = 0; j < sheets.getLength(); j++) {
 						CSSStyleSheet<? extends CSSRule> sheet = sheets.item(j);
-						Selector[] sel = ((BaseCSSStyleSheet) sheet)
-								.getSelectorsForPropertyValue(property, value);
+						Selector[] sel = index.getSelectorsForPropertyValue(j, property, value);
 						if (sel != null) {
-							LinkedList<Selector> selectorList = new LinkedList<>();
-							LinkedList<Selector> unmatched = unmatchedSelectors(sel, elm,
+							List<Selector> selectorList = new ArrayList<>(sel.length);
+							List<Selector> unmatched = unmatchedSelectors(sel, elm,
 									otherdocElm, selectorList);
 							reporter.unmatchedLeftSelector(sheet, j, elm, property, value,
 									selectorList, unmatched);
@@ -1258,11 +1529,11 @@ public class SampleSitesIT {
 					String othervalue = otherStyle.getPropertyValue(property);
 					for (int j = 0; j < otherSheets.getLength(); j++) {
 						CSSStyleSheet<? extends CSSRule> sheet = otherSheets.item(j);
-						Selector[] sel = ((BaseCSSStyleSheet) sheet)
-								.getSelectorsForPropertyValue(property, othervalue);
+						Selector[] sel = otherIndex.getSelectorsForPropertyValue(j, property,
+								othervalue);
 						if (sel != null) {
-							LinkedList<Selector> selectorList = new LinkedList<>();
-							LinkedList<Selector> unmatched = unmatchedSelectors(sel, otherdocElm,
+							List<Selector> selectorList = new ArrayList<>(sel.length);
+							List<Selector> unmatched = unmatchedSelectors(sel, otherdocElm,
 									elm, selectorList);
 							reporter.unmatchedRightSelector(sheet, j, elm, property, othervalue,
 									selectorList, unmatched);
@@ -1300,7 +1571,69 @@ public class SampleSitesIT {
 		return retval;
 	}
 
-	private boolean computeStyles(DOMElement element) {
+	/**
+	 * Get the selector index of the style sheets of the given document, building
+	 * it if needed.
+	 * <p>
+	 * The indexes are kept by document, as a backend may return a new sheet list
+	 * each time that it is asked for it.
+	 * </p>
+	 * 
+	 * @param doc the document.
+	 * @return the selector index.
+	 */
+	private SelectorIndex selectorIndex(CSSDocument doc) {
+		SelectorIndex index = selectorIndexes.get(doc);
+		if (index == null) {
+			index = new SelectorIndex(doc.getStyleSheets());
+			selectorIndexes.put(doc, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Check the computed styles of the given element and its descendants, in
+	 * document order, until the computation budget is exhausted.
+	 * <p>
+	 * The traversal is iterative, and only keeps an element iterator per depth
+	 * level.
+	 * </p>
+	 * 
+	 * @param root the element where the check starts.
+	 * @return {@code false} if errors were found.
+	 */
+	private boolean computeStyles(DOMElement root) {
+		boolean retval = true;
+		long deadline = computeMaxMillis == 0 ? Long.MAX_VALUE
+				: System.currentTimeMillis() + computeMaxMillis;
+		int count = 0;
+		ArrayDeque<Iterator<DOMElement>> stack = new ArrayDeque<>();
+		DOMElement element = root;
+		while (element != null) {
+			if (!computeStyle(element)) {
+				retval = false;
+			}
+			count++;
+			if (count == computeMaxElements || System.currentTimeMillis() > deadline) {
+				log.warn("Computed style budget exhausted after " + count + " elements at "
+						+ document.getDocumentURI());
+				break;
+			}
+			stack.push(element.elementIterator());
+			element = null;
+			while (!stack.isEmpty()) {
+				Iterator<DOMElement> it = stack.peek();
+				if (it.hasNext()) {
+					element = it.next();
+					break;
+				}
+				stack.pop();
+			}
+		}
+		return retval;
+	}
+
+	private boolean computeStyle(DOMElement element) {
 		boolean retval = true;
 		ComputedCSSStyle style = element.getComputedStyle(null);
 		int len = style.getLength();
@@ -1333,24 +1666,16 @@ public class SampleSitesIT {
 			}
 		}
 
-		Iterator<DOMElement> it = element.elementIterator();
-		while (it.hasNext()) {
-			DOMElement elm = it.next();
-			if (!computeStyles(elm)) {
-				retval = false;
-			}
-		}
-
 		return retval;
 	}
 
-	private LinkedList<Selector> unmatchedSelectors(Selector[] sel, CSSElement elm,
-			CSSElement otherdocElm, LinkedList<Selector> selectorList) {
-		LinkedList<Selector> unmatched = new LinkedList<>();
+	private List<Selector> unmatchedSelectors(Selector[] sel, CSSElement elm,
+			CSSElement otherdocElm, List<Selector> selectorList) {
+		List<Selector> unmatched = new ArrayList<>();
 		for (Selector selector : sel) {
-			if (elm.getSelectorMatcher().matches(selector)) {
+			if (matches(elm, selector)) {
 				selectorList.add(selector);
-				if (!otherdocElm.getSelectorMatcher().matches(selector)) {
+				if (!matches(otherdocElm, selector)) {
 					unmatched.add(selector);
 				}
 			}
@@ -1358,6 +1683,26 @@ public class SampleSitesIT {
 		return unmatched;
 	}
 
+	/**
+	 * Check whether the given element matches the selector, matching each
+	 * selector only once per element while attributing differences in computed
+	 * styles.
+	 * 
+	 * @param elm      the element.
+	 * @param selector the selector.
+	 * @return {@code true} if the element matches.
+	 */
+	private boolean matches(CSSElement elm, Selector selector) {
+		IdentityHashMap<Selector, Boolean> matches = selectorMatches.computeIfAbsent(elm,
+				k -> new IdentityHashMap<>());
+		Boolean match = matches.get(selector);
+		if (match == null) {
+			match = elm.getSelectorMatcher().matches(selector);
+			matches.put(selector, match);
+		}
+		return match;
+	}
+
 	private void compareChildList(NodeList domlist1, NodeList domlist2, DOMElement parent,
 			String backendName) throws IOException {
 		int sz1 = domlist1.getLength();
@@ -1430,6 +1775,78 @@ public class SampleSitesIT {
 		return DigestUtils.md5Hex(s);
 	}
 
+	/**
+	 * Obtain the source of a native style sheet, to identify it in the
+	 * serialization verdict store.
+	 * <p>
+	 * The source of a linked sheet is only known when the site snapshot is
+	 * enabled, as it holds the same bytes that the backends parsed.
+	 * </p>
+	 * 
+	 * @param sheet the sheet.
+	 * @return the source, or {@code null} if it is not known.
+	 */
+	private byte[] sheetSource(AbstractCSSStyleSheet sheet) {
+		byte[] source = SerializationVerdictStore.inlineSource(sheet);
+		if (source != null || snapshot == null) {
+			return source;
+		}
+		String href = sheet.getHref();
+		if (href == null) {
+			return null;
+		}
+		try {
+			URL url = new URL(href);
+			if (!snapshot.contains(url)) {
+				return null;
+			}
+			URLConnection ucon = snapshot.openConnection(url, u -> {
+				throw new IOException("Not in the snapshot: " + u.toExternalForm());
+			});
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(8192);
+			try (InputStream is = ucon.getInputStream()) {
+				byte[] b = new byte[8192];
+				int n;
+				while ((n = is.read(b)) != -1) {
+					buf.write(b, 0, n);
+				}
+			}
+			return buf.toByteArray();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Open a connection for a resource of the site being tested, through the
+	 * site snapshot and the network cache when they are enabled.
+	 * 
+	 * @param url     the URL.
+	 * @param refresh if {@code true}, refresh the cached copy of the resource.
+	 * @param origin  the origin used to retrieve the resource.
+	 * @return the connection.
+	 * @throws IOException if the resource could not be retrieved.
+	 */
+	private URLConnection openSiteConnection(URL url, boolean refresh, NetCache.Origin origin)
+			throws IOException {
+		if (snapshot != null) {
+			// The snapshot retrieves once for all the backends, so any may refresh
+			boolean refreshOnce = forceCacheRefresh && !prefetched;
+			return snapshot.openConnection(url,
+					u -> openCachedConnection(u, refreshOnce, origin));
+		}
+		return openCachedConnection(url, refresh, origin);
+	}
+
+	private static URLConnection openCachedConnection(URL url, boolean refresh,
+			NetCache.Origin origin) throws IOException {
+		if (netcache != null) {
+			return netcache.openConnection(url, encodeString(url.toExternalForm()), refresh,
+					origin);
+		}
+		return origin.openConnection(url);
+	}
+
 	private void checkOrigin(URL url) throws IllegalOriginException {
 		String prot = url.getProtocol();
 		if (!"https".equals(prot) && !"http".equals(prot)) {
@@ -1437,6 +1854,23 @@ public class SampleSitesIT {
 		}
 	}
 
+	/**
+	 * Opens the network connections of the prefetch.
+	 */
+	static class OriginUserAgent extends DefaultUserAgent {
+
+		private static final long serialVersionUID = 1L;
+
+		OriginUserAgent() {
+			super(parserFlags, false);
+		}
+
+		URLConnection openOriginConnection(URL url) throws IOException {
+			return openConnection(url, System.currentTimeMillis());
+		}
+
+	}
+
 	class MyDOMUserAgent extends DefaultUserAgent {
 
 		private static final long serialVersionUID = 1L;
@@ -1450,17 +1884,8 @@ public class SampleSitesIT {
 		@Override
 		protected URLConnection openConnection(URL url, long creationDate) throws IOException {
 			checkOrigin(url);
-			URLConnection ucon;
-			if (netcache != null) {
-				String hostname = url.getHost();
-				String encUrl = encodeString(url.toExternalForm());
-				if (forceCacheRefresh || !netcache.isCached(hostname, encUrl)) {
-					ucon = super.openConnection(url, creationDate);
-					netcache.cacheFile(url, encUrl, ucon);
-				}
-				return netcache.openConnection(hostname, encUrl);
-			}
-			return super.openConnection(url, creationDate);
+			return openSiteConnection(url, forceCacheRefresh && !prefetched,
+					u -> super.openConnection(u, creationDate));
 		}
 
 		@Override
@@ -1484,17 +1909,7 @@ public class SampleSitesIT {
 		@Override
 		protected URLConnection openConnection(URL url, long creationDate) throws IOException {
 			checkOrigin(url);
-			URLConnection ucon;
-			if (netcache != null) {
-				String hostname = url.getHost();
-				String encUrl = encodeString(url.toExternalForm());
-				if (!netcache.isCached(hostname, encUrl)) {
-					ucon = super.openConnection(url, creationDate);
-					netcache.cacheFile(url, encUrl, ucon);
-				}
-				return netcache.openConnection(hostname, encUrl);
-			}
-			return super.openConnection(url, creationDate);
+			return openSiteConnection(url, false, u -> super.openConnection(u, creationDate));
 		}
 
 		@Override
@@ -1560,17 +1975,8 @@ public class SampleSitesIT {
 			@Override
 			public URLConnection openConnection(URL url) throws IOException {
 				checkOrigin(url);
-				URLConnection ucon;
-				if (netcache != null) {
-					String hostname = url.getHost();
-					String encUrl = encodeString(url.toExternalForm());
-					if (!netcache.isCached(hostname, encUrl)) {
-						ucon = getUserAgent().openConnection(url, creationDate);
-						netcache.cacheFile(url, encUrl, ucon);
-					}
-					return netcache.openConnection(hostname, encUrl);
-				}
-				return getUserAgent().openConnection(url, creationDate);
+				return openSiteConnection(url, false,
+						u -> getUserAgent().openConnection(u, creationDate));
 			}
 
 			/**
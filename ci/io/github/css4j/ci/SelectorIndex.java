@@ -0,0 +1,132 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.sf.carte.doc.style.css.CSSRule;
+import io.sf.carte.doc.style.css.CSSRuleList;
+import io.sf.carte.doc.style.css.CSSStyleSheet;
+import io.sf.carte.doc.style.css.CSSStyleSheetList;
+import io.sf.carte.doc.style.css.nsac.Selector;
+import io.sf.carte.doc.style.css.nsac.SelectorList;
+import io.sf.carte.doc.style.css.om.BaseCSSStyleDeclaration;
+import io.sf.carte.doc.style.css.om.StyleRule;
+
+/**
+ * An inverted index of the style rules in a list of sheets, from the properties
+ * (and their values) to the selectors of the rules that declare them.
+ * <p>
+ * The index gives the same answers as the {@code getSelectorsForProperty} and
+ * {@code getSelectorsForPropertyValue} methods of {@code BaseCSSStyleSheet},
+ * but each sheet is scanned only once.
+ * </p>
+ */
+class SelectorIndex {
+
+	private final SheetIndex[] sheets;
+
+	/**
+	 * Index the given sheets.
+	 * 
+	 * @param sheetList the sheet list.
+	 */
+	SelectorIndex(CSSStyleSheetList<? extends CSSRule> sheetList) {
+		super();
+		int len = sheetList.getLength();
+		sheets = new SheetIndex[len];
+		for (int i = 0; i < len; i++) {
+			sheets[i] = new SheetIndex(sheetList.item(i));
+		}
+	}
+
+	/**
+	 * Get the selectors of the style rules of a sheet that declare the given
+	 * property.
+	 * 
+	 * @param sheetIndex   the index of the sheet in the list.
+	 * @param propertyName the property name.
+	 * @return the selectors, or {@code null} if no rule declares the property.
+	 */
+	Selector[] getSelectorsForProperty(int sheetIndex, String propertyName) {
+		return toArray(sheets[sheetIndex].byProperty.get(propertyName));
+	}
+
+	/**
+	 * Get the selectors of the style rules of a sheet that declare the given
+	 * property with the given value.
+	 * 
+	 * @param sheetIndex    the index of the sheet in the list.
+	 * @param propertyName  the property name.
+	 * @param propertyValue the property value.
+	 * @return the selectors, or {@code null} if no rule declares the property with
+	 *         that value.
+	 */
+	Selector[] getSelectorsForPropertyValue(int sheetIndex, String propertyName,
+			String propertyValue) {
+		HashMap<String, List<Selector>> values = sheets[sheetIndex].byValue.get(propertyName);
+		if (values == null) {
+			return null;
+		}
+		return toArray(values.get(propertyValue));
+	}
+
+	private static Selector[] toArray(List<Selector> list) {
+		if (list == null) {
+			return null;
+		}
+		return list.toArray(new Selector[list.size()]);
+	}
+
+	private static class SheetIndex {
+
+		private final HashMap<String, List<Selector>> byProperty = new HashMap<>();
+
+		private final HashMap<String, HashMap<String, List<Selector>>> byValue = new HashMap<>();
+
+		SheetIndex(CSSStyleSheet<? extends CSSRule> sheet) {
+			super();
+			CSSRuleList<? extends CSSRule> rules = sheet.getCssRules();
+			int n = rules.getLength();
+			for (int i = 0; i < n; i++) {
+				CSSRule rule = rules.item(i);
+				if (rule.getType() == CSSRule.STYLE_RULE) {
+					addRule((StyleRule) rule);
+				}
+			}
+		}
+
+		private void addRule(StyleRule rule) {
+			SelectorList selist = rule.getSelectorList();
+			BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) rule.getStyle();
+			int len = style.getLength();
+			for (int i = 0; i < len; i++) {
+				String property = style.item(i);
+				String value = style.getPropertyValue(property);
+				List<Selector> forProperty = byProperty.computeIfAbsent(property,
+						k -> new ArrayList<>());
+				List<Selector> forValue = byValue
+						.computeIfAbsent(property, k -> new HashMap<>())
+						.computeIfAbsent(value, k -> new ArrayList<>());
+				for (int j = 0; j < selist.getLength(); j++) {
+					Selector selector = selist.item(j);
+					forProperty.add(selector);
+					forValue.add(selector);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.w3c.dom.Node;
+
+import io.sf.carte.doc.dom.CSSDOMImplementation;
+import io.sf.carte.doc.style.css.nsac.Parser;
+import io.sf.carte.doc.style.css.om.AbstractCSSStyleSheet;
+
+/**
+ * Remembers, across runs, the style sheets whose rule serializations were
+ * verified without issues.
+ * <p>
+ * A sheet is identified by the SHA-256 hash of its source, the css4j version
+ * and the parser flags, so a change in any of them makes the sheet be checked
+ * again. The serializations are not part of the key, as they are the output
+ * under test: two sheets that serialize the same could still have different
+ * issues. Only the clean verdicts are stored: a sheet with issues is always
+ * checked, and its issues are reported again.
+ * </p>
+ * <p>
+ * The verdicts are kept in a text file, one key per line, and the new ones are
+ * appended when the store is saved.
+ * </p>
+ */
+class SerializationVerdictStore {
+
+	static final String FILENAME = "serialization-verdicts.txt";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final File file;
+
+	private final String salt;
+
+	private final Set<String> clean = ConcurrentHashMap.newKeySet();
+
+	private final Set<String> added = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Load the verdicts stored in the given file.
+	 *
+	 * @param file        the file, which does not need to exist yet.
+	 * @param parserFlags the parser flags used by the checks.
+	 * @throws IOException if the file could not be read.
+	 */
+	SerializationVerdictStore(File file, EnumSet<Parser.Flag> parserFlags) throws IOException {
+		this(file, parserFlags, css4jVersion());
+	}
+
+	/**
+	 * Load the verdicts stored in the given file, for the given css4j version.
+	 *
+	 * @param file         the file, which does not need to exist yet.
+	 * @param parserFlags  the parser flags used by the checks.
+	 * @param css4jVersion the css4j version.
+	 * @throws IOException if the file could not be read.
+	 */
+	SerializationVerdictStore(File file, EnumSet<Parser.Flag> parserFlags, String css4jVersion)
+			throws IOException {
+		super();
+		this.file = file;
+		this.salt = css4jVersion + '\n' + parserFlags.toString() + '\n';
+		if (file.isFile()) {
+			try (BufferedReader re = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), StandardCharsets.US_ASCII))) {
+				String line;
+				while ((line = re.readLine()) != null) {
+					line = line.trim();
+					if (line.length() != 0 && line.charAt(0) != '#') {
+						clean.add(line);
+					}
+				}
+			}
+		}
+	}
+
+	private static String css4jVersion() {
+		Package pkg = CSSDOMImplementation.class.getPackage();
+		String version = pkg != null ? pkg.getImplementationVersion() : null;
+		if (version == null) {
+			// Running from classes, or from a jar without version in its manifest
+			CodeSource source = CSSDOMImplementation.class.getProtectionDomain().getCodeSource();
+			URL location = source != null ? source.getLocation() : null;
+			version = location != null ? location.toExternalForm() : "unknown";
+		}
+		return version;
+	}
+
+	/**
+	 * Compute the key of a sheet.
+	 *
+	 * @param source the source of the sheet, as it was retrieved.
+	 * @return the key.
+	 */
+	String key(byte[] source) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(salt.getBytes(StandardCharsets.UTF_8));
+		byte[] bytes = digest.digest(source);
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Obtain the source of a sheet that belongs to a {@code <style>} element.
+	 *
+	 * @param sheet the sheet.
+	 * @return the text of the {@code <style>} element, or {@code null} if the
+	 *         sheet does not belong to one.
+	 */
+	static byte[] inlineSource(AbstractCSSStyleSheet sheet) {
+		Node owner = sheet.getOwnerNode();
+		if (owner != null && owner.getNodeType() == Node.ELEMENT_NODE
+				&& "style".equalsIgnoreCase(owner.getNodeName())) {
+			return owner.getTextContent().getBytes(StandardCharsets.UTF_8);
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether the sheet with the given key was verified without issues.
+	 *
+	 * @param key the sheet key.
+	 * @return {@code true} if the sheet is known to be clean.
+	 */
+	boolean isClean(String key) {
+		return clean.contains(key);
+	}
+
+	/**
+	 * Record that the sheet with the given key was verified without issues.
+	 *
+	 * @param key the sheet key.
+	 */
+	void recordClean(String key) {
+		if (clean.add(key)) {
+			added.add(key);
+		}
+	}
+
+	/**
+	 * Append the new verdicts to the file.
+	 *
+	 * @throws IOException if the file could not be written.
+	 */
+	synchronized void save() throws IOException {
+		if (added.isEmpty()) {
+			return;
+		}
+		File dir = file.getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir.getAbsolutePath());
+		}
+		try (Writer wri = new OutputStreamWriter(new FileOutputStream(file, true),
+				StandardCharsets.US_ASCII)) {
+			Iterator<String> it = added.iterator();
+			while (it.hasNext()) {
+				wri.write(it.next());
+				wri.write('\n');
+				it.remove();
+			}
+		}
+	}
+
+}
@@ -98,10 +98,10 @@ public interface SiteErrorReporter {
 	void differentNodes(DOMElement parent, LinkedList<Node> nodediff);
 
 	void unmatchedLeftSelector(StyleSheet sheet, int sheetIndex, DOMElement elm, String property, String propertyValue,
-			LinkedList<Selector> selectorList, LinkedList<Selector> unmatched);
+			List<Selector> selectorList, List<Selector> unmatched);
 
 	void unmatchedRightSelector(StyleSheet sheet, int sheetIndex, DOMElement elm, String property, String propertyValue,
-			LinkedList<Selector> selectorList, LinkedList<Selector> unmatched);
+			List<Selector> selectorList, List<Selector> unmatched);
 
 	void differentComputedValues(DOMElement elm, String property, String valueText, String rightValueText);
 
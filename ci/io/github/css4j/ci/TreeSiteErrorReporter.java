@@ -41,6 +41,11 @@ public class TreeSiteErrorReporter extends BaseSiteErrorReporter {
 
 	final static Logger log = LoggerFactory.getLogger(TreeSiteErrorReporter.class.getName());
 
+	/**
+	 * Serializes the writes to the global file, as sites may run concurrently.
+	 */
+	private static final Object globalFileLock = new Object();
+
 	private URL testedurl;
 	private File hostdir;
 	private String filename;
@@ -101,11 +106,13 @@ public class TreeSiteErrorReporter extends BaseSiteErrorReporter {
 	public void fail(String message) {
 		PrintWriter pw;
 		try {
-			pw = new PrintWriter(new FileOutputStream(getGlobalFile(hostdir.getParentFile()), true));
-			pw.println(testedurl.toExternalForm());
-			pw.println(message);
-			pw.println();
-			pw.close();
+			synchronized (globalFileLock) {
+				pw = new PrintWriter(new FileOutputStream(getGlobalFile(hostdir.getParentFile()), true));
+				pw.println(testedurl.toExternalForm());
+				pw.println(message);
+				pw.println();
+				pw.close();
+			}
 		} catch (FileNotFoundException e) {
 			log.error("Unable to write to " + getGlobalFile(hostdir.getParentFile()).getAbsolutePath(), e);
 		}
@@ -0,0 +1,187 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.sf.carte.net.NetCache;
+
+public class CachePrefetcherTest {
+
+	private File cachedir;
+
+	private HttpServer server;
+
+	private final Set<String> requested = ConcurrentHashMap.newKeySet();
+
+	private String base;
+
+	@Before
+	public void setUp() throws IOException {
+		cachedir = Files.createTempDirectory("prefetch").toFile();
+
+		// Path -> content type and body
+		Map<String, String[]> fixtures = new HashMap<>();
+		fixtures.put("/index.html", new String[] { "text/html; charset=utf-8",
+				"<!DOCTYPE html><html><head><title>Test</title>"
+						+ "<link rel=\"stylesheet\" href=\"css/main.css\">"
+						+ "<link rel=\"alternate Stylesheet\" href=\"/alt.css#top\">"
+						+ "<link rel=\"icon\" href=\"/favicon.ico\">"
+						+ "<style>@import url(\"/inline.css\");p{color:blue}</style>"
+						+ "</head><body><p>Test</p></body></html>" });
+		// An invalid charset must not prevent the scan
+		fixtures.put("/based.html", new String[] { "text/html; charset=\"no such\"",
+				"<!DOCTYPE html><html><head><base href=\"/sub/\">"
+						+ "<link rel=\"stylesheet\" href=\"sheet.css\">"
+						+ "</head><body></body></html>" });
+		fixtures.put("/css/main.css", new String[] { "text/css; charset=no such",
+				"@import \"imported.css\";\np{margin:0}" });
+		fixtures.put("/css/imported.css", new String[] { "text/css; charset=iso-8859-1",
+				"@IMPORT url( 'nested.css' ) screen;div{margin:1px}" });
+		fixtures.put("/css/nested.css", new String[] { "text/css", "span{color:red}" });
+		fixtures.put("/alt.css", new String[] { "text/css; charset=x-unsupported-charset",
+				"@import '/css/main.css';" });
+		fixtures.put("/inline.css", new String[] { "text/css", "h1{font-size:2em}" });
+		fixtures.put("/sub/sheet.css", new String[] { "text/css", "h2{font-size:1.5em}" });
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			requested.add(path);
+			String[] fixture = fixtures.get(path);
+			if (fixture == null) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+			} else {
+				exchange.getResponseHeaders().set("Content-Type", fixture[0]);
+				byte[] body = fixture[1].getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+				exchange.getResponseBody().write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+		base = "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		deleteTree(cachedir);
+	}
+
+	private static void deleteTree(File file) {
+		File[] list = file.listFiles();
+		if (list != null) {
+			for (File child : list) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	private boolean isCached(NetCache netcache, String path) {
+		return netcache.isCached("localhost", SampleSitesIT.encodeString(base + path));
+	}
+
+	@Test
+	public void testPrefetch() throws IOException, InterruptedException {
+		NetCache netcache = new NetCache(cachedir);
+		try {
+			CachePrefetcher prefetcher = new CachePrefetcher(netcache, URL::openConnection,
+					false, 3);
+			prefetcher.prefetch(Arrays.asList(base + "/index.html", base + "/based.html",
+					"ftp://localhost/index.html", "not a uri"));
+
+			assertTrue(isCached(netcache, "/index.html"));
+			assertTrue(isCached(netcache, "/based.html"));
+			// Linked sheets
+			assertTrue(isCached(netcache, "/css/main.css"));
+			assertTrue(isCached(netcache, "/alt.css"));
+			assertFalse(isCached(netcache, "/alt.css#top"));
+			// Relative to <base>
+			assertTrue(isCached(netcache, "/sub/sheet.css"));
+			assertFalse(requested.contains("/sheet.css"));
+			// Imported from a <style> element, and nested imports
+			assertTrue(isCached(netcache, "/inline.css"));
+			assertTrue(isCached(netcache, "/css/imported.css"));
+			assertTrue(isCached(netcache, "/css/nested.css"));
+			// Not a style sheet
+			assertFalse(requested.contains("/favicon.ico"));
+
+			assertEquals(8, requested.size());
+		} finally {
+			netcache.close();
+		}
+	}
+
+	@Test
+	public void testRefresh() throws IOException, InterruptedException {
+		NetCache netcache = new NetCache(cachedir);
+		try {
+			new CachePrefetcher(netcache, URL::openConnection, false, 2)
+					.prefetch(Arrays.asList(base + "/index.html"));
+			assertTrue(isCached(netcache, "/css/nested.css"));
+
+			// Without refresh, cached resources are not retrieved again
+			requested.clear();
+			new CachePrefetcher(netcache, URL::openConnection, false, 2)
+					.prefetch(Arrays.asList(base + "/index.html"));
+			assertTrue(requested.isEmpty());
+
+			requested.clear();
+			new CachePrefetcher(netcache, URL::openConnection, true, 2)
+					.prefetch(Arrays.asList(base + "/index.html"));
+			assertTrue(requested.contains("/index.html"));
+			assertTrue(requested.contains("/css/nested.css"));
+		} finally {
+			netcache.close();
+		}
+	}
+
+	@Test
+	public void testCharset() {
+		assertEquals(StandardCharsets.UTF_8, CachePrefetcher.charset("text/css; charset=utf-8"));
+		assertEquals(StandardCharsets.ISO_8859_1,
+				CachePrefetcher.charset("text/html;Charset=\"ISO-8859-1\"; foo=bar"));
+		assertNull(CachePrefetcher.charset("text/css"));
+		assertNull(CachePrefetcher.charset("text/css; charset="));
+		assertNull(CachePrefetcher.charset(null));
+		// IllegalCharsetNameException
+		assertNull(CachePrefetcher.charset("text/css; charset=no such"));
+		// UnsupportedCharsetException
+		assertNull(CachePrefetcher.charset("text/css; charset=x-unsupported-charset"));
+	}
+
+}
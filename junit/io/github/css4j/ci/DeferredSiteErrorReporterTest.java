@@ -0,0 +1,48 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DeferredSiteErrorReporterTest {
+
+	@Test
+	public void testReplay() throws IOException {
+		DeferredSiteErrorReporter deferred = new DeferredSiteErrorReporter();
+		assertTrue(deferred.isEmpty());
+
+		deferred.startSiteReport(new URL("http://www.example.com/"));
+		deferred.setSideDescriptions("left", "right");
+		deferred.sideComparison("Different");
+		assertFalse(deferred.isEmpty());
+
+		RecordingSiteErrorReporter recording = new RecordingSiteErrorReporter();
+		deferred.replay(recording.getReporter());
+		assertEquals(Arrays.asList("startSiteReport(java.net.URL)",
+				"setSideDescriptions(left, right)", "sideComparison(Different)"),
+				recording.getCalls());
+
+		// Can be replayed again
+		RecordingSiteErrorReporter other = new RecordingSiteErrorReporter();
+		deferred.replay(other.getReporter());
+		assertEquals(recording.getCalls(), other.getCalls());
+	}
+
+}
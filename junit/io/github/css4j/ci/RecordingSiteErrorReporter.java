@@ -0,0 +1,102 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import io.sf.carte.doc.dom.CSSDOMImplementation;
+import io.sf.carte.doc.dom.DOMElement;
+import io.sf.carte.doc.dom.HTMLDocument;
+import io.sf.carte.doc.style.css.nsac.Parser;
+
+/**
+ * Records the calls made to a site reporter, so that the reports of two checks
+ * can be compared.
+ * <p>
+ * Strings, numbers and booleans are recorded by value, and other arguments by
+ * their class, as they may be different objects in each check.
+ * </p>
+ */
+class RecordingSiteErrorReporter {
+
+	private final List<String> calls = new ArrayList<>();
+
+	private final SiteErrorReporter reporter;
+
+	RecordingSiteErrorReporter() {
+		super();
+		reporter = (SiteErrorReporter) Proxy.newProxyInstance(
+				SiteErrorReporter.class.getClassLoader(), new Class<?>[] { SiteErrorReporter.class },
+				(proxy, method, args) -> {
+					if (method.getDeclaringClass() == Object.class) {
+						return method.invoke(this, args);
+					}
+					StringBuilder buf = new StringBuilder(64);
+					buf.append(method.getName()).append('(');
+					if (args != null) {
+						for (int i = 0; i < args.length; i++) {
+							if (i != 0) {
+								buf.append(", ");
+							}
+							Object arg = args[i];
+							if (arg == null || arg instanceof CharSequence || arg instanceof Number
+									|| arg instanceof Boolean) {
+								buf.append(arg);
+							} else {
+								buf.append(arg.getClass().getName());
+							}
+						}
+					}
+					buf.append(')');
+					synchronized (calls) {
+						calls.add(buf.toString());
+					}
+					return null;
+				});
+	}
+
+	SiteErrorReporter getReporter() {
+		return reporter;
+	}
+
+	List<String> getCalls() {
+		synchronized (calls) {
+			return new ArrayList<>(calls);
+		}
+	}
+
+	/**
+	 * Create an HTML document with a {@code <style>} element for each of the given
+	 * sheets.
+	 *
+	 * @param parserFlags the flags to parse the sheets.
+	 * @param sheets      the text of the sheets.
+	 * @return the document.
+	 */
+	static HTMLDocument createDocument(EnumSet<Parser.Flag> parserFlags, String... sheets) {
+		CSSDOMImplementation domImpl = new CSSDOMImplementation(parserFlags);
+		HTMLDocument document = (HTMLDocument) domImpl.createDocument(null, "html", null);
+		document.setDocumentURI("http://www.example.com/dir/");
+		DOMElement head = document.createElement("head");
+		document.getDocumentElement().appendChild(head);
+		for (String text : sheets) {
+			DOMElement style = document.createElement("style");
+			style.appendChild(document.createTextNode(text));
+			head.appendChild(style);
+		}
+		return document;
+	}
+
+}
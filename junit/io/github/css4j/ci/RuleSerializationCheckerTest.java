@@ -0,0 +1,121 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.sf.carte.doc.dom.HTMLDocument;
+import io.sf.carte.doc.style.css.nsac.Parser;
+import io.sf.carte.doc.style.css.om.StyleSheetList;
+
+public class RuleSerializationCheckerTest {
+
+	private static ForkJoinPool pool;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		pool = new ForkJoinPool(4);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Create a document whose sheets are parsed with the star hack, so that a
+	 * checker without that flag reports issues.
+	 *
+	 * @return the document.
+	 */
+	static HTMLDocument createHackedDocument() {
+		StringBuilder buf = new StringBuilder(40000);
+		for (int i = 0; i < 3 * RuleSerializationChecker.SHARD_SIZE + 10; i++) {
+			buf.append(".c").append(i).append("{margin-left:").append(i).append("px;");
+			if (i % 97 == 0) {
+				buf.append("*zoom:1;");
+			}
+			buf.append("}\n");
+			if (i % 211 == 0) {
+				buf.append("@media screen{.m").append(i).append("{color:blue;*zoom:1}}\n");
+			}
+		}
+		return RecordingSiteErrorReporter.createDocument(EnumSet.of(Parser.Flag.STARHACK),
+				buf.toString(), "p{color:red;*zoom:1}", "div{margin:0 auto}");
+	}
+
+	@Test
+	public void testShardedSameAsSequential() throws IOException {
+		HTMLDocument document = createHackedDocument();
+		StyleSheetList sheets = document.getStyleSheets();
+		assertEquals(3, sheets.getLength());
+		assertTrue(sheets.item(0).getCssRules()
+				.getLength() > 3 * RuleSerializationChecker.SHARD_SIZE);
+
+		RecordingSiteErrorReporter sequential = new RecordingSiteErrorReporter();
+		short seqResult = new RuleSerializationChecker(sequential.getReporter(),
+				EnumSet.noneOf(Parser.Flag.class)).checkRuleSerialization(sheets);
+
+		RecordingSiteErrorReporter sharded = new RecordingSiteErrorReporter();
+		short shardResult = new RuleSerializationChecker(sharded.getReporter(),
+				EnumSet.noneOf(Parser.Flag.class)).checkRuleSerialization(sheets, pool);
+
+		List<String> calls = sequential.getCalls();
+		assertFalse(calls.isEmpty());
+		assertEquals(calls, sharded.getCalls());
+		assertEquals(seqResult, shardResult);
+	}
+
+	@Test
+	public void testSubmit() throws IOException {
+		HTMLDocument document = createHackedDocument();
+		StyleSheetList sheets = document.getStyleSheets();
+
+		RecordingSiteErrorReporter sequential = new RecordingSiteErrorReporter();
+		short seqResult = new RuleSerializationChecker(sequential.getReporter(),
+				EnumSet.noneOf(Parser.Flag.class)).checkRuleSerialization(sheets);
+
+		RecordingSiteErrorReporter pending = new RecordingSiteErrorReporter();
+		RuleSerializationChecker.PendingCheck check = new RuleSerializationChecker(
+				pending.getReporter(), EnumSet.noneOf(Parser.Flag.class)).submit(sheets, pool);
+		// Nothing is reported until the re-parsed rules are compared
+		assertTrue(pending.getCalls().isEmpty());
+		short result = check.await();
+
+		assertEquals(sequential.getCalls(), pending.getCalls());
+		assertEquals(seqResult, result);
+	}
+
+	@Test
+	public void testShardedClean() throws IOException {
+		HTMLDocument document = RecordingSiteErrorReporter.createDocument(
+				EnumSet.noneOf(Parser.Flag.class), "p{color:red}", "div{margin:0 auto}");
+		RecordingSiteErrorReporter sharded = new RecordingSiteErrorReporter();
+		short result = new RuleSerializationChecker(sharded.getReporter(),
+				EnumSet.noneOf(Parser.Flag.class))
+				.checkRuleSerialization(document.getStyleSheets(), pool);
+		assertEquals(-1, result);
+		assertTrue(sharded.getCalls().isEmpty());
+	}
+
+}
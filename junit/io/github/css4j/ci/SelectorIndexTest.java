@@ -0,0 +1,134 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.sf.carte.doc.dom.HTMLDocument;
+import io.sf.carte.doc.style.css.CSSRule;
+import io.sf.carte.doc.style.css.CSSRuleList;
+import io.sf.carte.doc.style.css.nsac.Parser;
+import io.sf.carte.doc.style.css.nsac.Selector;
+import io.sf.carte.doc.style.css.om.BaseCSSStyleDeclaration;
+import io.sf.carte.doc.style.css.om.BaseCSSStyleSheet;
+import io.sf.carte.doc.style.css.om.GroupingRule;
+import io.sf.carte.doc.style.css.om.StyleRule;
+import io.sf.carte.doc.style.css.om.StyleSheetList;
+
+public class SelectorIndexTest {
+
+	private StyleSheetList sheets;
+
+	private SelectorIndex index;
+
+	@Before
+	public void setUp() {
+		HTMLDocument document = RecordingSiteErrorReporter.createDocument(
+				EnumSet.noneOf(Parser.Flag.class),
+				"p,div.foo{margin:0 auto;color:blue}"
+						+ "div>p,#bar{margin-top:0;margin-left:auto;color:red}"
+						+ "span{margin:1px 2px}"
+						+ "@media screen{p,span{color:blue;padding:4px}"
+						+ "@supports (display:grid){div{display:grid;margin-top:0}}}"
+						+ ".baz{padding:4px;font:12px serif}",
+				"h1{color:blue;margin-top:0}@media print{h1{border-top:1px solid}}");
+		sheets = document.getStyleSheets();
+		index = new SelectorIndex(sheets);
+	}
+
+	@Test
+	public void testSameAsStyleSheet() {
+		assertEquals(2, sheets.getLength());
+		int count = 0;
+		for (int i = 0; i < sheets.getLength(); i++) {
+			BaseCSSStyleSheet sheet = (BaseCSSStyleSheet) sheets.item(i);
+			Map<String, Set<String>> declared = new LinkedHashMap<>();
+			collectDeclarations(sheet.getCssRules(), declared);
+			declared.computeIfAbsent("text-indent", k -> new LinkedHashSet<>());
+			for (Map.Entry<String, Set<String>> entry : declared.entrySet()) {
+				String property = entry.getKey();
+				assertSameSelectors(sheet.getSelectorsForProperty(property),
+						index.getSelectorsForProperty(i, property), property);
+				Set<String> values = entry.getValue();
+				values.add("no-such-value");
+				for (String value : values) {
+					assertSameSelectors(sheet.getSelectorsForPropertyValue(property, value),
+							index.getSelectorsForPropertyValue(i, property, value),
+							property + ':' + value);
+					count++;
+				}
+			}
+		}
+		// Make sure that the sheets were parsed
+		assertTrue(count > 20);
+	}
+
+	@Test
+	public void testShorthandAndLonghand() {
+		// Declared with the 'margin' shorthand in two rules, and as a longhand in
+		// another
+		Selector[] sel = index.getSelectorsForPropertyValue(0, "margin-top", "0");
+		assertNotNull(sel);
+		assertEquals(4, sel.length);
+		sel = index.getSelectorsForProperty(0, "margin-top");
+		assertNotNull(sel);
+		assertEquals(5, sel.length);
+		assertNull(index.getSelectorsForProperty(0, "text-indent"));
+		assertNull(index.getSelectorsForPropertyValue(0, "color", "green"));
+	}
+
+	private static void collectDeclarations(CSSRuleList<? extends CSSRule> rules,
+			Map<String, Set<String>> declared) {
+		for (int i = 0; i < rules.getLength(); i++) {
+			CSSRule rule = rules.item(i);
+			if (rule.getType() == CSSRule.STYLE_RULE) {
+				BaseCSSStyleDeclaration style = (BaseCSSStyleDeclaration) ((StyleRule) rule)
+						.getStyle();
+				for (int j = 0; j < style.getLength(); j++) {
+					String property = style.item(j);
+					declared.computeIfAbsent(property, k -> new LinkedHashSet<>())
+							.add(style.getPropertyValue(property));
+				}
+			} else if (rule instanceof GroupingRule) {
+				// Also query the properties that are only declared in grouping rules
+				collectDeclarations(((GroupingRule) rule).getCssRules(), declared);
+			}
+		}
+	}
+
+	/*
+	 * The style sheet methods return null when no rule matches, so a null result
+	 * and an empty array are not the same.
+	 */
+	private static void assertSameSelectors(Selector[] expected, Selector[] actual, String query) {
+		if (expected == null) {
+			assertNull(query, actual);
+		} else {
+			assertNotNull(query, actual);
+			assertEquals(query, Arrays.asList(expected), Arrays.asList(actual));
+		}
+	}
+
+}
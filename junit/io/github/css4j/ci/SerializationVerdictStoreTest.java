@@ -0,0 +1,251 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.github.css4j.ci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.sf.carte.doc.dom.HTMLDocument;
+import io.sf.carte.doc.style.css.nsac.Parser;
+import io.sf.carte.doc.style.css.om.AbstractCSSStyleSheet;
+import io.sf.carte.doc.style.css.om.StyleSheetList;
+
+public class SerializationVerdictStoreTest {
+
+	private static final String SHEET = "p{color:red}div{margin:0 auto}"
+			+ "@media screen{.foo{padding:4px}}";
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("verdicts", ".txt");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private SerializationVerdictStore createStore(String css4jVersion) throws IOException {
+		return new SerializationVerdictStore(file, EnumSet.noneOf(Parser.Flag.class),
+				css4jVersion);
+	}
+
+	private static AbstractCSSStyleSheet parseSheet(String text) {
+		HTMLDocument document = RecordingSiteErrorReporter
+				.createDocument(EnumSet.noneOf(Parser.Flag.class), text);
+		return document.getStyleSheets().item(0);
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String key(SerializationVerdictStore store, AbstractCSSStyleSheet sheet) {
+		return store.key(SerializationVerdictStore.inlineSource(sheet));
+	}
+
+	@Test
+	public void testKeyStableAcrossRuns() throws IOException {
+		SerializationVerdictStore store = createStore("6.0");
+		String key = key(store, parseSheet(SHEET));
+		assertEquals(64, key.length());
+		assertEquals(key, key(store, parseSheet(SHEET)));
+		assertEquals(key, store.key(bytes(SHEET)));
+		assertFalse(store.isClean(key));
+		store.recordClean(key);
+		assertTrue(store.isClean(key));
+		store.save();
+
+		// Next run: a new store, and the sheet parsed again
+		SerializationVerdictStore next = createStore("6.0");
+		String nextKey = key(next, parseSheet(SHEET));
+		assertEquals(key, nextKey);
+		assertTrue(next.isClean(nextKey));
+
+		// Saving again does not duplicate the verdict
+		next.recordClean(nextKey);
+		next.save();
+		assertEquals(1, Files.readAllLines(file.toPath()).size());
+		assertTrue(createStore("6.0").isClean(key));
+	}
+
+	@Test
+	public void testKeySheetTextChange() throws IOException {
+		SerializationVerdictStore store = createStore("6.0");
+		String key = store.key(bytes(SHEET));
+		store.recordClean(key);
+		store.save();
+
+		SerializationVerdictStore next = createStore("6.0");
+		String changed = next.key(bytes(SHEET + "span{color:blue}"));
+		assertNotEquals(key, changed);
+		assertFalse(next.isClean(changed));
+		changed = next.key(bytes("p{color:blue}div{margin:0 auto}"
+				+ "@media screen{.foo{padding:4px}}"));
+		assertNotEquals(key, changed);
+		assertFalse(next.isClean(changed));
+	}
+
+	@Test
+	public void testKeySameSerialization() throws IOException {
+		// Different sources that serialize the same must not share a verdict, as the
+		// serialization is what is being checked
+		String other = "p { color: red; }\ndiv { margin: 0 auto; }\n"
+				+ "@media screen { .foo { padding: 4px; } }";
+		AbstractCSSStyleSheet sheet = parseSheet(SHEET);
+		AbstractCSSStyleSheet otherSheet = parseSheet(other);
+		assertEquals(sheet.getCssRules().getLength(), otherSheet.getCssRules().getLength());
+		for (int i = 0; i < sheet.getCssRules().getLength(); i++) {
+			assertEquals(sheet.getCssRules().item(i).getCssText(),
+					otherSheet.getCssRules().item(i).getCssText());
+		}
+		SerializationVerdictStore store = createStore("6.0");
+		assertNotEquals(key(store, sheet), key(store, otherSheet));
+	}
+
+	@Test
+	public void testKeyVersionChange() throws IOException {
+		SerializationVerdictStore store = createStore("6.0");
+		String key = store.key(bytes(SHEET));
+		store.recordClean(key);
+		store.save();
+
+		SerializationVerdictStore next = createStore("6.1");
+		String nextKey = next.key(bytes(SHEET));
+		assertNotEquals(key, nextKey);
+		assertFalse(next.isClean(nextKey));
+
+		// The parser flags are also part of the key
+		SerializationVerdictStore flagged = new SerializationVerdictStore(file,
+				EnumSet.of(Parser.Flag.STARHACK), "6.0");
+		String flaggedKey = flagged.key(bytes(SHEET));
+		assertNotEquals(key, flaggedKey);
+		assertFalse(flagged.isClean(flaggedKey));
+	}
+
+	@Test
+	public void testUnknownSource() throws IOException {
+		HTMLDocument document = RecordingSiteErrorReporter.createDocument(
+				EnumSet.noneOf(Parser.Flag.class), SHEET);
+		StyleSheetList sheets = document.getStyleSheets();
+		SerializationVerdictStore store = createStore("6.0");
+		RuleSerializationChecker checker = new RuleSerializationChecker(
+				new RecordingSiteErrorReporter().getReporter(), EnumSet.noneOf(Parser.Flag.class));
+		checker.setVerdictStore(store, sheet -> null);
+		assertEquals(-1, checker.checkRuleSerialization(sheets));
+		store.save();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testReportedNotClean() throws IOException {
+		HTMLDocument document = RuleSerializationCheckerTest.createHackedDocument();
+		StyleSheetList sheets = document.getStyleSheets();
+		SerializationVerdictStore store = createStore("6.0");
+
+		RecordingSiteErrorReporter recording = new RecordingSiteErrorReporter();
+		RuleSerializationChecker checker = new RuleSerializationChecker(
+				recording.getReporter(), EnumSet.noneOf(Parser.Flag.class));
+		checker.setVerdictStore(store, SerializationVerdictStore::inlineSource);
+		checker.checkRuleSerialization(sheets);
+		assertFalse(recording.getCalls().isEmpty());
+		assertNotClean(store, sheets);
+
+		// The sheets with reports are checked, and reported, again
+		RecordingSiteErrorReporter again = new RecordingSiteErrorReporter();
+		checker = new RuleSerializationChecker(again.getReporter(),
+				EnumSet.noneOf(Parser.Flag.class));
+		checker.setVerdictStore(store, SerializationVerdictStore::inlineSource);
+		checker.checkRuleSerialization(sheets);
+		assertEquals(recording.getCalls(), again.getCalls());
+	}
+
+	@Test
+	public void testReportedNotCleanPool() throws IOException {
+		HTMLDocument document = RuleSerializationCheckerTest.createHackedDocument();
+		StyleSheetList sheets = document.getStyleSheets();
+		SerializationVerdictStore store = createStore("6.0");
+
+		RecordingSiteErrorReporter recording = new RecordingSiteErrorReporter();
+		RuleSerializationChecker checker = new RuleSerializationChecker(
+				recording.getReporter(), EnumSet.noneOf(Parser.Flag.class));
+		checker.setVerdictStore(store, SerializationVerdictStore::inlineSource);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			checker.checkRuleSerialization(sheets, pool);
+		} finally {
+			pool.shutdown();
+		}
+		assertFalse(recording.getCalls().isEmpty());
+		assertNotClean(store, sheets);
+	}
+
+	/*
+	 * The first two sheets have star hacks that are reported when checked without
+	 * the flag, and the last one is clean.
+	 */
+	private static void assertNotClean(SerializationVerdictStore store, StyleSheetList sheets) {
+		assertEquals(3, sheets.getLength());
+		assertFalse(store.isClean(key(store, sheets.item(0))));
+		assertFalse(store.isClean(key(store, sheets.item(1))));
+		assertTrue(store.isClean(key(store, sheets.item(2))));
+	}
+
+	@Test
+	public void testThrewNotClean() throws IOException {
+		HTMLDocument document = RecordingSiteErrorReporter.createDocument(
+				EnumSet.noneOf(Parser.Flag.class), SHEET);
+		StyleSheetList sheets = document.getStyleSheets();
+		SerializationVerdictStore store = createStore("6.0");
+
+		RecordingSiteErrorReporter recording = new RecordingSiteErrorReporter();
+		RuleSerializationChecker checker = new RuleSerializationChecker(
+				recording.getReporter(), EnumSet.noneOf(Parser.Flag.class));
+		checker.setVerdictStore(store, SerializationVerdictStore::inlineSource);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		// An interrupted check throws, whatever the shards found
+		Thread.currentThread().interrupt();
+		try {
+			checker.checkRuleSerialization(sheets, pool);
+			fail("Must throw an exception");
+		} catch (IOException e) {
+		} finally {
+			Thread.interrupted();
+			pool.shutdown();
+		}
+		String key = key(store, sheets.item(0));
+		assertFalse(store.isClean(key));
+
+		// Once checked without failure, the sheet is recorded
+		checker.checkRuleSerialization(sheets);
+		assertTrue(recording.getCalls().isEmpty());
+		assertTrue(store.isClean(key));
+	}
+
+}
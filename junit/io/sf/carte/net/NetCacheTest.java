@@ -0,0 +1,807 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+
+public class NetCacheTest {
+
+	private File cachedir;
+
+	@Before
+	public void setUp() throws IOException {
+		cachedir = Files.createTempDirectory("netcache").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		deleteTree(cachedir);
+	}
+
+	static void deleteTree(File file) {
+		File[] list = file.listFiles();
+		if (list != null) {
+			for (File child : list) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testFileStore() throws IOException {
+		NetCache netcache = new NetCache(cachedir);
+		URL url = new URL("http://www.example.com/css/style.css");
+		assertFalse(netcache.isCached("www.example.com", "abc"));
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertTrue(new File(new File(cachedir, "www.example.com"), "abc").isFile());
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		netcache.close();
+	}
+
+	@Test
+	public void testPackedStore() throws IOException {
+		NetCache netcache = new NetCache(cachedir, true);
+		URL url = new URL("http://www.example.com/css/style.css");
+		URL url2 = new URL("http://www.example.com/index.html");
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.cacheFile(url2, "def", new StubConnection(url2, "<html></html>"));
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertFalse(new File(new File(cachedir, "www.example.com"), "abc").exists());
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		netcache.close();
+
+		// Reopen, the index must be rebuilt
+		netcache = new NetCache(cachedir, true);
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertTrue(netcache.isCached("www.example.com", "def"));
+		assertFalse(netcache.isCached("www.example.com", "ghi"));
+		assertEntry(netcache.openConnection("www.example.com", "def"), "<html></html>");
+		// Refresh an entry
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:red}"));
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:red}");
+		netcache.close();
+
+		netcache = new NetCache(cachedir, true);
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:red}");
+		netcache.close();
+	}
+
+	@Test
+	public void testIndexRebuild() throws IOException {
+		NetCache netcache = new NetCache(cachedir);
+		URL url = new URL("http://www.example.com/css/style.css");
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.close();
+		File indexfile = new File(cachedir, CacheIndex.INDEX_FILENAME);
+		assertTrue(indexfile.isFile());
+
+		// The index answers without looking at the host directory
+		File cachedfile = new File(new File(cachedir, "www.example.com"), "abc");
+		File movedfile = new File(cachedir, "abc.moved");
+		assertTrue(cachedfile.renameTo(movedfile));
+		netcache = new NetCache(cachedir);
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		netcache.close();
+
+		// Rebuild from metadata.txt
+		assertTrue(movedfile.renameTo(cachedfile));
+		assertTrue(indexfile.delete());
+		netcache = new NetCache(cachedir);
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		netcache.close();
+		assertTrue(indexfile.isFile());
+
+		// Packed: rebuild from the segments
+		netcache = new NetCache(cachedir, true);
+		netcache.cacheFile(url, "def", new StubConnection(url, "p{color:red}"));
+		netcache.close();
+		File packindex = new File(new File(cachedir, "pack"), CacheIndex.INDEX_FILENAME);
+		assertTrue(packindex.delete());
+		netcache = new NetCache(cachedir, true);
+		assertTrue(netcache.isCached("www.example.com", "def"));
+		assertFalse(netcache.isCached("www.example.com", "abc"));
+		assertEntry(netcache.openConnection("www.example.com", "def"), "p{color:red}");
+		netcache.close();
+	}
+
+	@Test
+	public void testIndexRebuildExpiry() throws IOException {
+		String date = DateTimeFormatter.RFC_1123_DATE_TIME
+				.format(ZonedDateTime.now(ZoneOffset.UTC));
+		for (boolean packed : new boolean[] { false, true }) {
+			NetCache netcache = new NetCache(cachedir, packed);
+			URL url = new URL("http://www.example.com/css/style.css");
+			netcache.cacheFile(url, "abc", new HeaderStubConnection(url, "p{color:blue}",
+					"Cache-Control", "max-age=3600", "Date", date));
+			// The fetch time is lost with the index
+			netcache.cacheFile(url, "def", new HeaderStubConnection(url, "p{color:red}",
+					"Cache-Control", "max-age=3600"));
+			netcache.cacheFile(url, "ghi", new HeaderStubConnection(url, "p{color:green}",
+					"Expires", "Thu, 01 Oct 2026 10:00:00 GMT"));
+			netcache.cacheFile(url, "jkl", new StubConnection(url, "p{color:gray}"));
+			netcache.close();
+
+			File indexdir = packed ? new File(cachedir, "pack") : cachedir;
+			File indexfile = new File(indexdir, CacheIndex.INDEX_FILENAME);
+			assertTrue(indexfile.delete());
+			netcache = new NetCache(cachedir, packed);
+			EvictionPolicy policy = new EvictionPolicy();
+			policy.setExpireEnabled(true);
+			netcache.setEvictionPolicy(policy);
+			netcache.evict();
+			assertTrue(netcache.isCached("www.example.com", "abc"));
+			assertFalse(netcache.isCached("www.example.com", "def"));
+			assertFalse(netcache.isCached("www.example.com", "ghi"));
+			// A response without expiry information is kept
+			assertTrue(netcache.isCached("www.example.com", "jkl"));
+			netcache.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentFetch() throws Exception {
+		NetCache netcache = new NetCache(cachedir, true);
+		URL url = new URL("http://www.example.com/css/style.css");
+		AtomicInteger fetches = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(1);
+		NetCache.Origin origin = u -> {
+			fetches.incrementAndGet();
+			return new StubConnection(u, "p{color:blue}") {
+
+				@Override
+				public InputStream getInputStream() {
+					try {
+						// Let the other threads pile up
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+					}
+					return super.getInputStream();
+				}
+
+			};
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(() -> {
+				latch.await();
+				return readBody(netcache.openConnection(url, "abc", false, origin));
+			}));
+		}
+		latch.countDown();
+		for (Future<String> result : results) {
+			assertEquals("p{color:blue}", result.get());
+		}
+		executor.shutdown();
+		assertEquals(1, fetches.get());
+		netcache.close();
+	}
+
+	@Test
+	public void testMemoryMapped() throws IOException {
+		StringBuilder buf = new StringBuilder(100000);
+		while (buf.length() < 100000) {
+			buf.append("div.foo{margin:0 auto}\n");
+		}
+		String large = buf.toString();
+		URL url = new URL("http://www.example.com/css/style.css");
+		URL url2 = new URL("http://www.example.com/css/large.css");
+		NetCache netcache = new NetCache(cachedir);
+		netcache.setMemoryMapped(true);
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.cacheFile(url2, "def", new StubConnection(url2, large));
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		assertEntry(netcache.openConnection("www.example.com", "def"), large);
+		netcache.close();
+
+		netcache = new NetCache(cachedir, true);
+		netcache.setMemoryMapped(true);
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.cacheFile(url2, "def", new StubConnection(url2, large));
+		assertEntry(netcache.openConnection("www.example.com", "def"), large);
+		URLConnection ucon = netcache.openConnection("www.example.com", "abc");
+		ucon.connect();
+		assertEquals(13, ucon.getContentLengthLong());
+		assertEquals("OK", ((HttpURLConnection) ucon).getResponseMessage());
+		assertEquals("p{color:blue}", readBody(ucon));
+		netcache.close();
+	}
+
+	@Test
+	public void testStorageCodec() throws IOException {
+		StringBuilder buf = new StringBuilder(100000);
+		while (buf.length() < 100000) {
+			buf.append("div.foo{margin:0 auto}\n");
+		}
+		String large = buf.toString();
+		URL url = new URL("http://www.example.com/css/style.css");
+		URL url2 = new URL("http://www.example.com/css/large.css");
+		NetCache netcache = new NetCache(cachedir);
+		netcache.setStorageCodec(StorageCodec.GZIP);
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.setStorageCodec(StorageCodec.DEFLATE);
+		netcache.cacheFile(url2, "def", new StubConnection(url2, large));
+		File cachedfile = new File(new File(cachedir, "www.example.com"), "def");
+		assertTrue(cachedfile.length() < large.length() / 10);
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		URLConnection ucon = netcache.openConnection("www.example.com", "def");
+		assertEntry(ucon, large);
+		assertNull(ucon.getHeaderField(NetCache.CODEC_HEADER));
+		assertEquals(-1, ucon.getContentLengthLong());
+		// Uncompressed entries can coexist with compressed ones
+		netcache.setStorageCodec(StorageCodec.NONE);
+		netcache.cacheFile(url, "ghi", new StubConnection(url, "p{color:red}"));
+		assertEntry(netcache.openConnection("www.example.com", "ghi"), "p{color:red}");
+		netcache.close();
+
+		netcache = new NetCache(cachedir, true);
+		netcache.setStorageCodec(StorageCodec.GZIP);
+		netcache.setMemoryMapped(true);
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.cacheFile(url2, "def", new StubConnection(url2, large));
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		assertEntry(netcache.openConnection("www.example.com", "def"), large);
+		netcache.close();
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		NetCache netcache = new NetCache(cachedir);
+		URL url = new URL("http://www.example.com/css/style.css");
+		URL url2 = new URL("http://www.example.org/css/style.css");
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.cacheFile(url, "def", new StubConnection(url, "p{color:red}"));
+		netcache.cacheFile(url, "ghi", new StubConnection(url, "p{color:green}"));
+		netcache.cacheFile(url2, "abc", new StubConnection(url2, "p{color:blue}"));
+		netcache.cacheFile(url2, "jkl", new StubConnection(url2, "p{color:gray}") {
+
+			@Override
+			public String getHeaderField(String name) {
+				return "Cache-Control".equalsIgnoreCase(name) ? "public, max-age=0" : null;
+			}
+
+		});
+		netcache.openConnection("www.example.com", "abc");
+		netcache.openConnection("www.example.com", "abc");
+		netcache.openConnection("www.example.com", "ghi");
+
+		EvictionPolicy policy = new EvictionPolicy();
+		policy.setOrder(EvictionPolicy.Order.LFU);
+		policy.setExpireEnabled(true);
+		// Room for two entries per host
+		policy.setMaxHostBytes(90);
+		netcache.setEvictionPolicy(policy);
+		netcache.evict();
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertFalse(netcache.isCached("www.example.com", "def"));
+		assertTrue(netcache.isCached("www.example.com", "ghi"));
+		assertTrue(netcache.isCached("www.example.org", "abc"));
+		assertFalse(netcache.isCached("www.example.org", "jkl"));
+		assertFalse(new File(new File(cachedir, "www.example.com"), "def").exists());
+
+		// Global limit: one entry left, the most used
+		policy.setMaxBytes(50);
+		netcache.evict();
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertFalse(netcache.isCached("www.example.com", "ghi"));
+		assertFalse(netcache.isCached("www.example.org", "abc"));
+		netcache.close();
+
+		// Removals are in the index journal
+		netcache = new NetCache(cachedir);
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertFalse(netcache.isCached("www.example.org", "abc"));
+		netcache.close();
+	}
+
+	@Test
+	public void testPackedCompaction() throws IOException {
+		NetCache netcache = new NetCache(cachedir, true);
+		URL url = new URL("http://www.example.com/css/style.css");
+		netcache.cacheFile(url, "def", new StubConnection(url, "p{color:red}"));
+		for (int i = 0; i < 4; i++) {
+			netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue;margin:" + i + "}"));
+		}
+		netcache.setEvictionPolicy(new EvictionPolicy());
+		netcache.evict();
+		File packdir = new File(cachedir, "pack");
+		assertFalse(new File(packdir, "00000.seg").exists());
+		assertTrue(new File(packdir, "00001.seg").exists());
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue;margin:3}");
+		assertEntry(netcache.openConnection("www.example.com", "def"), "p{color:red}");
+		netcache.close();
+
+		netcache = new NetCache(cachedir, true);
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue;margin:3}");
+		netcache.close();
+
+		// Rebuild the index without the compacted segment
+		assertTrue(new File(packdir, CacheIndex.INDEX_FILENAME).delete());
+		netcache = new NetCache(cachedir, true);
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue;margin:3}");
+		assertEntry(netcache.openConnection("www.example.com", "def"), "p{color:red}");
+		netcache.cacheFile(url, "ghi", new StubConnection(url, "p{color:green}"));
+		assertEntry(netcache.openConnection("www.example.com", "ghi"), "p{color:green}");
+		netcache.close();
+	}
+
+	@Test
+	public void testPackedInterruptedRead() throws Exception {
+		NetCache netcache = new NetCache(cachedir, true);
+		URL url = new URL("http://www.example.com/css/style.css");
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		// An interrupted read closes the segment channel
+		Thread.currentThread().interrupt();
+		try {
+			readBody(netcache.openConnection("www.example.com", "abc"));
+			fail("Must throw an exception");
+		} catch (IOException e) {
+		} finally {
+			Thread.interrupted();
+		}
+		// Other threads can still read and write
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		NetCache cache = netcache;
+		try {
+			Future<String> body = executor
+					.submit(() -> readBody(cache.openConnection("www.example.com", "abc")));
+			assertEquals("p{color:blue}", body.get());
+		} finally {
+			executor.shutdown();
+		}
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:blue}");
+		netcache.cacheFile(url, "def", new StubConnection(url, "p{color:red}"));
+		assertEntry(netcache.openConnection("www.example.com", "def"), "p{color:red}");
+		netcache.close();
+
+		netcache = new NetCache(cachedir, true);
+		assertEntry(netcache.openConnection("www.example.com", "def"), "p{color:red}");
+		netcache.close();
+	}
+
+	@Test
+	public void testRevalidation() throws IOException {
+		AtomicInteger fullResponses = new AtomicInteger();
+		AtomicInteger version = new AtomicInteger(1);
+		HttpServer server = HttpServer
+				.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", exchange -> {
+			String etag = "\"v" + version.get() + '"';
+			String lastModified = "Thu, 01 Oct 2026 10:00:0" + version.get() + " GMT";
+			String path = exchange.getRequestURI().getPath();
+			Headers reqHeaders = exchange.getRequestHeaders();
+			Headers respHeaders = exchange.getResponseHeaders();
+			respHeaders.set("Content-Type", "text/css");
+			boolean notModified;
+			if (path.equals("/etag.css")) {
+				respHeaders.set("ETag", etag);
+				notModified = etag.equals(reqHeaders.getFirst("If-None-Match"));
+			} else {
+				respHeaders.set("Last-Modified", lastModified);
+				notModified = lastModified.equals(reqHeaders.getFirst("If-Modified-Since"));
+			}
+			if (notModified) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+			} else {
+				fullResponses.incrementAndGet();
+				byte[] body = ("p{color:blue;margin:" + version.get() + "px}")
+						.getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+				exchange.getResponseBody().write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+		NetCache netcache = new NetCache(cachedir, true);
+		try {
+			String base = "http://localhost:" + server.getAddress().getPort();
+			URL url = new URL(base + "/etag.css");
+			URL url2 = new URL(base + "/lastmod.css");
+			NetCache.Origin origin = URL::openConnection;
+			assertEntry(netcache.openConnection(url, "abc", false, origin), "p{color:blue;margin:1px}");
+			assertEntry(netcache.openConnection(url2, "def", false, origin), "p{color:blue;margin:1px}");
+			assertEquals(2, fullResponses.get());
+
+			// Not modified: the cached bodies are kept
+			assertEntry(netcache.openConnection(url, "abc", true, origin), "p{color:blue;margin:1px}");
+			assertEntry(netcache.openConnection(url2, "def", true, origin), "p{color:blue;margin:1px}");
+			assertEquals(2, fullResponses.get());
+
+			// Modified
+			version.set(2);
+			assertEntry(netcache.openConnection(url, "abc", true, origin), "p{color:blue;margin:2px}");
+			assertEntry(netcache.openConnection(url2, "def", true, origin), "p{color:blue;margin:2px}");
+			assertEquals(4, fullResponses.get());
+		} finally {
+			netcache.close();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testDeduplication() throws IOException {
+		URL url = new URL("http://www.example.com/css/bootstrap.css");
+		URL url2 = new URL("http://www.example.org/lib/bootstrap.min.css");
+		NetCache netcache = new NetCache(cachedir, true);
+		netcache.setDeduplicated(true);
+		netcache.setStorageCodec(StorageCodec.GZIP);
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:blue}"));
+		netcache.cacheFile(url2, "def", new StubConnection(url2, "p{color:blue}"));
+		File blobdir = new File(new File(cachedir, "pack"), BlobStore.BLOB_DIRNAME);
+		assertEquals(1, countFiles(blobdir));
+		URLConnection ucon = netcache.openConnection("www.example.com", "abc");
+		assertEntry(ucon, "p{color:blue}");
+		assertNull(ucon.getHeaderField(NetCache.BLOB_HEADER));
+		assertEntry(netcache.openConnection("www.example.org", "def"), "p{color:blue}");
+
+		// Supersede one of the entries, the shared blob stays
+		netcache.cacheFile(url, "abc", new StubConnection(url, "p{color:red}"));
+		assertEquals(2, countFiles(blobdir));
+		assertEntry(netcache.openConnection("www.example.org", "def"), "p{color:blue}");
+		netcache.close();
+
+		// Reference counts after a rebuild of the index
+		assertTrue(new File(new File(cachedir, "pack"), CacheIndex.INDEX_FILENAME).delete());
+		netcache = new NetCache(cachedir, true);
+		netcache.setDeduplicated(true);
+		assertEntry(netcache.openConnection("www.example.com", "abc"), "p{color:red}");
+		netcache.cacheFile(url2, "def", new StubConnection(url2, "p{color:red}"));
+		assertEquals(1, countFiles(blobdir));
+		assertEntry(netcache.openConnection("www.example.org", "def"), "p{color:red}");
+		netcache.close();
+
+		netcache = new NetCache(cachedir);
+		netcache.setDeduplicated(true);
+		netcache.cacheFile(url, "ghi", new StubConnection(url, "p{color:red}"));
+		netcache.cacheFile(url2, "jkl", new StubConnection(url2, "p{color:red}"));
+		assertEquals(1, countFiles(new File(cachedir, BlobStore.BLOB_DIRNAME)));
+		assertEquals(1, countFiles(blobdir));
+		assertEntry(netcache.openConnection("www.example.com", "ghi"), "p{color:red}");
+		netcache.close();
+	}
+
+	@Test
+	public void testDeduplicatedEviction() throws IOException {
+		URL url = new URL("http://www.example.com/css/bootstrap.css");
+		StringBuilder buf = new StringBuilder(2000);
+		for (int i = 0; i < 200; i++) {
+			buf.append("p{margin:0}");
+		}
+		String shared = buf.toString();
+		NetCache netcache = new NetCache(cachedir);
+		netcache.setDeduplicated(true);
+		netcache.cacheFile(url, "abc", new StubConnection(url, shared));
+		netcache.cacheFile(url, "def", new StubConnection(url, shared));
+		netcache.cacheFile(url, "ghi", new StubConnection(url, shared));
+		netcache.cacheFile(url, "jkl", new StubConnection(url, "p{color:red}"));
+		netcache.openConnection("www.example.com", "jkl");
+		netcache.openConnection("www.example.com", "jkl");
+
+		// The shared blob is counted once, so everything fits
+		EvictionPolicy policy = new EvictionPolicy();
+		policy.setOrder(EvictionPolicy.Order.LFU);
+		policy.setMaxHostBytes(3000);
+		policy.setMaxBytes(3000);
+		netcache.setEvictionPolicy(policy);
+		netcache.evict();
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertTrue(netcache.isCached("www.example.com", "def"));
+		assertTrue(netcache.isCached("www.example.com", "ghi"));
+		assertTrue(netcache.isCached("www.example.com", "jkl"));
+
+		// The blob is only reclaimed with the last entry that points to it
+		policy.setMaxHostBytes(0);
+		policy.setMaxBytes(1000);
+		netcache.evict();
+		assertFalse(netcache.isCached("www.example.com", "abc"));
+		assertFalse(netcache.isCached("www.example.com", "def"));
+		assertFalse(netcache.isCached("www.example.com", "ghi"));
+		assertTrue(netcache.isCached("www.example.com", "jkl"));
+		assertEntry(netcache.openConnection("www.example.com", "jkl"), "p{color:red}");
+		assertEquals(1, countFiles(new File(cachedir, BlobStore.BLOB_DIRNAME)));
+		netcache.close();
+	}
+
+	@Test
+	public void testStreaming() throws IOException {
+		StringBuilder buf = new StringBuilder(100000);
+		while (buf.length() < 100000) {
+			buf.append("div.foo{margin:0 auto}\n");
+		}
+		String large = buf.toString();
+		URL url = new URL("http://www.example.com/css/large.css");
+		NetCache netcache = new NetCache(cachedir, true);
+		netcache.setStreaming(true);
+		netcache.setStorageCodec(StorageCodec.GZIP);
+		NetCache.Origin origin = u -> new StubConnection(u, large);
+		URLConnection ucon = netcache.openConnection(url, "abc", false, origin);
+		assertEquals(200, ((HttpURLConnection) ucon).getResponseCode());
+		assertEquals("text/css", ucon.getHeaderField("Content-Type"));
+		InputStream is = ucon.getInputStream();
+		byte[] b = new byte[1000];
+		assertEquals(1000, is.read(b));
+		assertFalse(netcache.isCached("www.example.com", "abc"));
+		// Closing early stores the whole body
+		is.close();
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertEntry(netcache.openConnection(url, "abc", false, origin), large);
+
+		// Read to the end, deduplicated
+		netcache.setDeduplicated(true);
+		assertEntry(netcache.openConnection(url, "def", false, origin), large);
+		assertTrue(netcache.isCached("www.example.com", "def"));
+		assertEntry(netcache.openConnection("www.example.com", "def"), large);
+
+		// A failed download is not stored
+		NetCache.Origin failing = u -> new StubConnection(u, large) {
+
+			@Override
+			public InputStream getInputStream() {
+				return new FilterInputStream(super.getInputStream()) {
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						throw new IOException("Connection reset");
+					}
+
+				};
+			}
+
+		};
+		try {
+			readBody(netcache.openConnection(url, "ghi", false, failing));
+			fail("Must throw an exception");
+		} catch (IOException e) {
+		}
+		assertFalse(netcache.isCached("www.example.com", "ghi"));
+		netcache.close();
+	}
+
+	@Test
+	public void testStreamingStalledReader() throws Exception {
+		StringBuilder buf = new StringBuilder(100000);
+		while (buf.length() < 100000) {
+			buf.append("div.foo{margin:0 auto}\n");
+		}
+		String large = buf.toString();
+		URL url = new URL("http://www.example.com/css/large.css");
+		NetCache netcache = new NetCache(cachedir, true);
+		netcache.setStreaming(true);
+		netcache.setConnectTimeout(200);
+		AtomicInteger connections = new AtomicInteger();
+		NetCache.Origin origin = u -> {
+			connections.incrementAndGet();
+			return new StubConnection(u, large);
+		};
+		// The first reader stops reading, and does not close its stream
+		InputStream is = netcache.openConnection(url, "abc", false, origin).getInputStream();
+		assertEquals(1000, is.read(new byte[1000]));
+
+		// Another reader does not wait for it longer than the timeout, and does not
+		// retrieve the URL again
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			long time = System.currentTimeMillis();
+			Future<String> body = executor
+					.submit(() -> readBody(netcache.openConnection(url, "abc", false, origin)));
+			try {
+				body.get(10, TimeUnit.SECONDS);
+				fail("Must throw an exception");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertTrue(System.currentTimeMillis() - time < 5000);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, connections.get());
+		assertFalse(netcache.isCached("www.example.com", "abc"));
+
+		is.close();
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		assertEntry(netcache.openConnection(url, "abc", false, origin), large);
+		assertEquals(1, connections.get());
+		netcache.close();
+	}
+
+	@Test
+	public void testStreamingAbandonedReader() throws Exception {
+		URL url = new URL("http://www.example.com/css/style.css");
+		NetCache netcache = new NetCache(cachedir, true);
+		netcache.setStreaming(true);
+		// Long enough for the test to fail if the waiter has to time out
+		netcache.setConnectTimeout(60000);
+		AtomicInteger connections = new AtomicInteger();
+		NetCache.Origin origin = u -> {
+			connections.incrementAndGet();
+			return new StubConnection(u, "p{color:blue}");
+		};
+		// The first reader drops its stream without reading it or closing it
+		openAndDrop(netcache, url, origin);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> body = executor
+					.submit(() -> readBody(netcache.openConnection(url, "abc", false, origin)));
+			long deadline = System.currentTimeMillis() + 20000;
+			while (!body.isDone() && System.currentTimeMillis() < deadline) {
+				System.gc();
+				Thread.sleep(50);
+			}
+			assertEquals("p{color:blue}", body.get(1, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(2, connections.get());
+		assertTrue(netcache.isCached("www.example.com", "abc"));
+		netcache.close();
+	}
+
+	private static void openAndDrop(NetCache netcache, URL url, NetCache.Origin origin)
+			throws IOException {
+		netcache.openConnection(url, "abc", false, origin).getInputStream();
+	}
+
+	private static int countFiles(File dir) {
+		int count = 0;
+		File[] list = dir.listFiles();
+		if (list != null) {
+			for (File file : list) {
+				count += file.isDirectory() ? countFiles(file) : 1;
+			}
+		}
+		return count;
+	}
+
+	static void assertEntry(URLConnection ucon, String body) throws IOException {
+		ucon.connect();
+		assertEquals(200, ((HttpURLConnection) ucon).getResponseCode());
+		assertEquals("text/css", ucon.getHeaderField("Content-Type"));
+		assertEquals(body, readBody(ucon));
+		((HttpURLConnection) ucon).disconnect();
+	}
+
+	static String readBody(URLConnection ucon) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream is = ucon.getInputStream()) {
+			byte[] b = new byte[256];
+			int n;
+			while ((n = is.read(b)) != -1) {
+				out.write(b, 0, n);
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A connection whose response has the given headers.
+	 */
+	static class HeaderStubConnection extends StubConnection {
+
+		private final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+		HeaderStubConnection(URL url, String body, String... headers) {
+			super(url, body);
+			this.headers.put("Content-Type", Collections.singletonList("text/css"));
+			for (int i = 0; i < headers.length; i += 2) {
+				this.headers.put(headers[i], Collections.singletonList(headers[i + 1]));
+			}
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+				if (entry.getKey().equalsIgnoreCase(name)) {
+					return entry.getValue().get(0);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			return headers;
+		}
+
+	}
+
+	static class StubConnection extends HttpURLConnection {
+
+		private final byte[] body;
+
+		StubConnection(URL url, String body) {
+			super(url);
+			this.body = body.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void connect() {
+			connected = true;
+		}
+
+		@Override
+		public int getResponseCode() {
+			return 200;
+		}
+
+		@Override
+		public String getResponseMessage() {
+			return "OK";
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			Map<String, List<String>> map = new LinkedHashMap<>();
+			map.put("Content-Type", Collections.singletonList("text/css"));
+			return map;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(body);
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public boolean usingProxy() {
+			return false;
+		}
+
+	}
+
+}
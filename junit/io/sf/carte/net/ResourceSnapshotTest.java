@@ -0,0 +1,96 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ResourceSnapshotTest {
+
+	@Test
+	public void testSingleRetrieval() throws IOException {
+		ResourceSnapshot snapshot = new ResourceSnapshot();
+		URL url = new URL("http://www.example.com/css/style.css");
+		AtomicInteger count = new AtomicInteger();
+		NetCache.Origin origin = u -> new NetCacheTest.StubConnection(u,
+				"p{color:blue}/* " + count.incrementAndGet() + " */");
+
+		assertFalse(snapshot.contains(url));
+		URLConnection ucon = snapshot.openConnection(url, origin);
+		assertEquals(200, ((HttpURLConnection) ucon).getResponseCode());
+		assertEquals("text/css", ucon.getContentType());
+		assertEquals("p{color:blue}/* 1 */", NetCacheTest.readBody(ucon));
+
+		ucon = snapshot.openConnection(url, origin);
+		assertEquals("text/css", ucon.getHeaderFields().get("content-type").get(0));
+		assertEquals(20, ucon.getContentLength());
+		assertEquals("p{color:blue}/* 1 */", NetCacheTest.readBody(ucon));
+		assertEquals(1, count.get());
+		assertTrue(snapshot.contains(url));
+		assertEquals(1, snapshot.size());
+	}
+
+	@Test
+	public void testFailure() throws IOException {
+		ResourceSnapshot snapshot = new ResourceSnapshot();
+		URL url = new URL("http://www.example.com/css/missing.css");
+		AtomicInteger count = new AtomicInteger();
+		FileNotFoundException notFound = new FileNotFoundException(url.toExternalForm());
+		NetCache.Origin origin = u -> {
+			count.incrementAndGet();
+			throw notFound;
+		};
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				snapshot.openConnection(url, origin);
+				fail("Must throw exception");
+			} catch (FileNotFoundException e) {
+				assertSame(notFound, e);
+			}
+		}
+		assertEquals(1, count.get());
+	}
+
+	@Test
+	public void testFromCache() throws IOException {
+		File cachedir = Files.createTempDirectory("netcache").toFile();
+		NetCache netcache = new NetCache(cachedir);
+		try {
+			ResourceSnapshot snapshot = new ResourceSnapshot();
+			URL url = new URL("http://www.example.com/css/style.css");
+			URLConnection ucon = snapshot.openConnection(url,
+					u -> netcache.openConnection(u, "style.css", false,
+							v -> new NetCacheTest.StubConnection(v, "p{color:blue}")));
+			assertEquals("text/css", ucon.getContentType());
+			assertEquals("p{color:blue}", NetCacheTest.readBody(ucon));
+		} finally {
+			netcache.close();
+			NetCacheTest.deleteTree(cachedir);
+		}
+	}
+
+}
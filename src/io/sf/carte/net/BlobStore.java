@@ -0,0 +1,268 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores entry bodies by the SHA-256 hash of their content, so that identical
+ * bodies served from different URLs are stored once.
+ * <p>
+ * A blob lives in {@code blobs/<first two hex digits>/<hash>}, next to the
+ * index file, and starts with the name of the codec used to store it, followed
+ * by a line feed and the encoded body. Blobs are reference-counted by the index
+ * entries that point to them, and deleted when the last reference is released.
+ * </p>
+ */
+class BlobStore {
+
+	static final String BLOB_DIRNAME = "blobs";
+
+	private static final int LOCK_STRIPES = 64;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final File blobdir;
+
+	private final ConcurrentHashMap<String, Integer> refcounts = new ConcurrentHashMap<>();
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	BlobStore(File blobdir) {
+		super();
+		this.blobdir = blobdir;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	File getDirectory() {
+		return blobdir;
+	}
+
+	private Object lock(String hash) {
+		return locks[(hash.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	private File blobFile(String hash) {
+		return new File(new File(blobdir, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Count a reference from an entry loaded from the index.
+	 *
+	 * @param hash the blob hash.
+	 */
+	void addReference(String hash) {
+		refcounts.merge(hash, 1, Integer::sum);
+	}
+
+	/**
+	 * Release a reference, deleting the blob if it was the last one.
+	 *
+	 * @param hash the blob hash.
+	 */
+	void release(String hash) {
+		synchronized (lock(hash)) {
+			Integer count = refcounts.get(hash);
+			if (count == null || count <= 1) {
+				refcounts.remove(hash);
+				blobFile(hash).delete();
+			} else {
+				refcounts.put(hash, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Get the size of the given blob in storage.
+	 *
+	 * @param hash the blob hash.
+	 * @return the size in bytes, or {@code 0} if the blob does not exist.
+	 */
+	long size(String hash) {
+		return blobFile(hash).length();
+	}
+
+	/**
+	 * Create an output for a new body.
+	 *
+	 * @param codec the codec used to store the body, if it is not stored yet.
+	 * @return the blob output.
+	 * @throws IOException if the output could not be created.
+	 */
+	BlobOutput create(StorageCodec codec) throws IOException {
+		if (!blobdir.isDirectory()) {
+			if (!blobdir.mkdirs() && !blobdir.isDirectory()) {
+				throw new IOException("Could not create directory " + blobdir.getAbsolutePath());
+			}
+		}
+		return new BlobOutput(codec);
+	}
+
+	/**
+	 * Open a stream to read the decoded body of the given blob.
+	 *
+	 * @param hash the blob hash.
+	 * @return the body stream.
+	 * @throws IOException if the blob does not exist or could not be read.
+	 */
+	InputStream openBlob(String hash) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(blobFile(hash)), 8192);
+		try {
+			StringBuilder buf = new StringBuilder(8);
+			int b;
+			while ((b = is.read()) != 10) {
+				if (b == -1 || buf.length() > 16) {
+					throw new IOException("Invalid blob: " + hash);
+				}
+				buf.append((char) b);
+			}
+			return StorageCodec.forName(buf.toString()).decompress(is);
+		} catch (IOException | IllegalArgumentException e) {
+			is.close();
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw new IOException("Unknown storage codec in blob: " + hash);
+		}
+	}
+
+	/**
+	 * Receives an uncompressed body, and stores it under its hash.
+	 */
+	class BlobOutput extends OutputStream {
+
+		private final File tmpfile;
+
+		private final OutputStream out;
+
+		private final MessageDigest digest;
+
+		private String hash = null;
+
+		BlobOutput(StorageCodec codec) throws IOException {
+			super();
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			tmpfile = File.createTempFile("blob", ".tmp", blobdir);
+			OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tmpfile), 8192);
+			fileOut.write(codec.getName().getBytes(StandardCharsets.US_ASCII));
+			fileOut.write(10);
+			out = codec.compress(fileOut);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			digest.update((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			digest.update(b, off, len);
+		}
+
+		/**
+		 * Store the blob, unless an identical one is already stored, and add a
+		 * reference to it.
+		 * <p>
+		 * The reference must be released if the entry that holds it is not
+		 * committed.
+		 * </p>
+		 *
+		 * @return the blob hash.
+		 * @throws IOException if the blob could not be stored.
+		 */
+		String commit() throws IOException {
+			out.close();
+			String hash = toHex(digest.digest());
+			File blobfile = blobFile(hash);
+			synchronized (lock(hash)) {
+				if (blobfile.isFile()) {
+					tmpfile.delete();
+				} else {
+					File subdir = blobfile.getParentFile();
+					if (!subdir.mkdirs() && !subdir.isDirectory()) {
+						tmpfile.delete();
+						throw new IOException("Could not create directory " + subdir.getAbsolutePath());
+					}
+					try {
+						Files.move(tmpfile.toPath(), blobfile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tmpfile.toPath(), blobfile.toPath());
+					} catch (IOException e) {
+						tmpfile.delete();
+						throw e;
+					}
+				}
+				refcounts.merge(hash, 1, Integer::sum);
+			}
+			this.hash = hash;
+			return hash;
+		}
+
+		/**
+		 * Get the hash of the committed blob.
+		 *
+		 * @return the hash, or {@code null} if the blob was not committed.
+		 */
+		String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Drop the blob, or release its reference if it was already committed.
+		 */
+		void discard() {
+			if (hash != null) {
+				release(hash);
+				hash = null;
+				return;
+			}
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			tmpfile.delete();
+		}
+
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads from the remaining bytes of a buffer, without
+ * copying them.
+ */
+class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		super();
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		int rem = buffer.remaining();
+		if (rem == 0) {
+			return -1;
+		}
+		if (len > rem) {
+			len = rem;
+		}
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int len = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + len);
+		return len;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		buffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		buffer.reset();
+	}
+
+}
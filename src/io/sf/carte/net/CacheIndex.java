@@ -0,0 +1,383 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory index of the cache entries, persisted as a binary journal.
+ * <p>
+ * The journal starts with a magic number and a version, followed by one record
+ * per stored entry (key, segment, offset, length, status code, expiry time,
+ * access statistics and body blob) or removal. Later records supersede earlier ones with the
+ * same key, and the journal is rewritten when it holds too many superseded
+ * records.
+ * </p>
+ * <p>
+ * Lookups are lock-free; writes to the journal are serialized. The access
+ * statistics are updated in memory, and only reach the file when the journal
+ * is rewritten.
+ * </p>
+ */
+class CacheIndex implements Closeable {
+
+	static final String INDEX_FILENAME = "index.bin";
+
+	private static final int INDEX_MAGIC = 0x4e434958; // NCIX
+
+	private static final int INDEX_VERSION = 3;
+
+	/**
+	 * Segment value that marks a removal record.
+	 */
+	private static final int REMOVED = -2;
+
+	private final File indexfile;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(1024);
+
+	private DataOutputStream journal = null;
+
+	/**
+	 * The number of records in the journal file.
+	 */
+	private int records = 0;
+
+	CacheIndex(File indexfile) {
+		super();
+		this.indexfile = indexfile;
+	}
+
+	static String key(String hostname, String encodedUrl) {
+		return hostname + '/' + encodedUrl;
+	}
+
+	/**
+	 * Load the index from its file.
+	 *
+	 * @return {@code true} if the index was loaded, {@code false} if the file did
+	 *         not exist or is not a valid index, and the index must be rebuilt.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	synchronized boolean load() throws IOException {
+		if (!indexfile.isFile()) {
+			return false;
+		}
+		int count = 0;
+		boolean truncated = false;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexfile), 65536))) {
+			try {
+				if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+					return false;
+				}
+			} catch (EOFException e) {
+				return false;
+			}
+			while (true) {
+				String key;
+				try {
+					key = in.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				try {
+					int segment = in.readInt();
+					if (segment == REMOVED) {
+						entries.remove(key);
+					} else {
+						long offset = in.readLong();
+						long length = in.readLong();
+						int status = in.readInt();
+						long expires = in.readLong();
+						long lastAccess = in.readLong();
+						int hits = in.readInt();
+						String blob = in.readUTF();
+						Entry entry = new Entry(segment, offset, length, status, expires,
+								blob.isEmpty() ? null : blob);
+						entry.lastAccess = lastAccess;
+						entry.hits.set(hits);
+						entries.put(key, entry);
+					}
+				} catch (EOFException e) {
+					truncated = true;
+					break;
+				}
+				count++;
+			}
+		}
+		records = count;
+		if (truncated || isJournalBloated()) {
+			rewrite();
+		}
+		return true;
+	}
+
+	/**
+	 * Write the whole index to its file, dropping the superseded records.
+	 *
+	 * @throws IOException if an I/O error occurred.
+	 */
+	synchronized void rewrite() throws IOException {
+		int count = 0;
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		File tmpfile = new File(indexfile.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpfile), 65536))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			for (Map.Entry<String, Entry> mapentry : entries.entrySet()) {
+				writeRecord(out, mapentry.getKey(), mapentry.getValue());
+				count++;
+			}
+		}
+		Files.move(tmpfile.toPath(), indexfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		records = count;
+	}
+
+	/**
+	 * Rewrite the journal if it holds too many superseded records.
+	 *
+	 * @throws IOException if an I/O error occurred.
+	 */
+	synchronized void compactJournal() throws IOException {
+		if (isJournalBloated()) {
+			rewrite();
+		}
+	}
+
+	private boolean isJournalBloated() {
+		return records > 2 * entries.size() + 1024;
+	}
+
+	private static void writeRecord(DataOutputStream out, String key, Entry entry)
+			throws IOException {
+		out.writeUTF(key);
+		out.writeInt(entry.segment);
+		out.writeLong(entry.offset);
+		out.writeLong(entry.length);
+		out.writeInt(entry.status);
+		out.writeLong(entry.expires);
+		out.writeLong(entry.lastAccess);
+		out.writeInt(entry.hits.get());
+		out.writeUTF(entry.blob != null ? entry.blob : "");
+	}
+
+	boolean contains(String hostname, String encodedUrl) {
+		return entries.containsKey(key(hostname, encodedUrl));
+	}
+
+	Entry get(String hostname, String encodedUrl) {
+		return entries.get(key(hostname, encodedUrl));
+	}
+
+	Collection<Entry> values() {
+		return entries.values();
+	}
+
+	Set<Map.Entry<String, Entry>> entrySet() {
+		return entries.entrySet();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Put an entry in the in-memory index, without writing it to the journal.
+	 * <p>
+	 * Intended for index rebuilds, which must be followed by {@link #rewrite()}.
+	 * </p>
+	 */
+	void putTransient(String key, Entry entry) {
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Put an entry in the index and append it to the journal.
+	 *
+	 * @return the entry that was replaced, or {@code null} if none.
+	 */
+	synchronized Entry put(String hostname, String encodedUrl, Entry entry) throws IOException {
+		String key = key(hostname, encodedUrl);
+		Entry previous = entries.put(key, entry);
+		writeRecord(openJournal(), key, entry);
+		journal.flush();
+		records++;
+		return previous;
+	}
+
+	/**
+	 * Replace the entry for the given key, if it is still mapped to
+	 * {@code oldEntry}, and append the new one to the journal.
+	 *
+	 * @return {@code true} if the entry was replaced.
+	 */
+	synchronized boolean replace(String key, Entry oldEntry, Entry newEntry) throws IOException {
+		if (!entries.replace(key, oldEntry, newEntry)) {
+			return false;
+		}
+		writeRecord(openJournal(), key, newEntry);
+		journal.flush();
+		records++;
+		return true;
+	}
+
+	/**
+	 * Remove the entry for the given key, if it is still mapped to
+	 * {@code entry}, and append a removal record to the journal.
+	 *
+	 * @return {@code true} if the entry was removed.
+	 */
+	synchronized boolean remove(String key, Entry entry) throws IOException {
+		if (!entries.remove(key, entry)) {
+			return false;
+		}
+		DataOutputStream out = openJournal();
+		out.writeUTF(key);
+		out.writeInt(REMOVED);
+		out.flush();
+		records++;
+		return true;
+	}
+
+	private DataOutputStream openJournal() throws IOException {
+		if (journal == null) {
+			boolean exists = indexfile.isFile();
+			journal = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(indexfile, true), 4096));
+			if (!exists) {
+				journal.writeInt(INDEX_MAGIC);
+				journal.writeInt(INDEX_VERSION);
+			}
+		}
+		return journal;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	static class Entry {
+
+		/**
+		 * The segment, or {@code -1} if the entry is not in a segment.
+		 */
+		final int segment;
+
+		final long offset;
+
+		final long length;
+
+		/**
+		 * The response status code, or {@code -1} if unknown.
+		 */
+		final int status;
+
+		/**
+		 * The time after which the entry is stale, in milliseconds since the
+		 * epoch, or {@code 0} if the response did not say.
+		 */
+		final long expires;
+
+		/**
+		 * The time of the last access, in milliseconds since the epoch.
+		 */
+		volatile long lastAccess;
+
+		final AtomicInteger hits = new AtomicInteger();
+
+		/**
+		 * The hash of the blob that holds the body, or {@code null} if the body
+		 * is stored with the entry.
+		 */
+		final String blob;
+
+		Entry(int segment, long offset, long length, int status, long expires) {
+			this(segment, offset, length, status, expires, null);
+		}
+
+		Entry(int segment, long offset, long length, int status, long expires, String blob) {
+			super();
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.status = status;
+			this.expires = expires;
+			this.blob = blob;
+			this.lastAccess = System.currentTimeMillis();
+		}
+
+		private Entry copyStats(Entry entry) {
+			entry.lastAccess = lastAccess;
+			entry.hits.set(hits.get());
+			return entry;
+		}
+
+		/**
+		 * Create a copy of this entry at a new location, keeping the access
+		 * statistics.
+		 */
+		Entry relocate(int segment, long offset) {
+			return copyStats(new Entry(segment, offset, length, status, expires, blob));
+		}
+
+		/**
+		 * Create a copy of this entry with a new expiry time, keeping the access
+		 * statistics.
+		 */
+		Entry revalidate(long expires) {
+			return copyStats(new Entry(segment, offset, length, status, expires, blob));
+		}
+
+		/**
+		 * Create a copy of this entry with the given body blob, keeping the access
+		 * statistics.
+		 */
+		Entry withBlob(String blob) {
+			return copyStats(new Entry(segment, offset, length, status, expires, blob));
+		}
+
+		/**
+		 * Record an access to this entry.
+		 */
+		void touch() {
+			lastAccess = System.currentTimeMillis();
+			hits.incrementAndGet();
+		}
+
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage engine behind a {@link NetCache}.
+ * <p>
+ * An entry is the serialized response of a URL: the status line, the headers,
+ * an empty line and the body, as written by {@link NetCache}. The store only
+ * decides where those bytes live.
+ * </p>
+ */
+interface CacheStore extends Closeable {
+
+	/**
+	 * Entries of this size or larger are memory-mapped by
+	 * {@link #readEntry(String, String)}, smaller ones are read into a heap
+	 * buffer.
+	 */
+	int MAP_THRESHOLD = 65536;
+
+	/**
+	 * Rebuild the index of this store from the stored data.
+	 * <p>
+	 * The caller is expected to call {@link CacheIndex#rewrite()} afterwards.
+	 * </p>
+	 *
+	 * @throws IOException if an I/O error occurred.
+	 */
+	void rebuildIndex() throws IOException;
+
+	/**
+	 * Create an output for a new entry.
+	 * <p>
+	 * The entry is not visible until {@link EntryOutput#commit(int, long, String)} is called.
+	 * </p>
+	 *
+	 * @param hostname   the host name.
+	 * @param encodedUrl the encoded URL.
+	 * @return the entry output.
+	 * @throws IOException if the output could not be created.
+	 */
+	EntryOutput createEntry(String hostname, String encodedUrl) throws IOException;
+
+	/**
+	 * Open a stream to read the given entry.
+	 *
+	 * @param hostname   the host name.
+	 * @param encodedUrl the encoded URL.
+	 * @return the entry stream, starting at the status line.
+	 * @throws IOException if the entry does not exist or could not be read.
+	 */
+	InputStream openEntry(String hostname, String encodedUrl) throws IOException;
+
+	/**
+	 * Obtain a read-only buffer with the whole entry.
+	 * <p>
+	 * Large entries are mapped into memory, so no copy is made.
+	 * </p>
+	 *
+	 * @param hostname   the host name.
+	 * @param encodedUrl the encoded URL.
+	 * @return the buffer, positioned at the status line.
+	 * @throws IOException if the entry does not exist or could not be read.
+	 */
+	ByteBuffer readEntry(String hostname, String encodedUrl) throws IOException;
+
+	/**
+	 * Remove the given entry from the store and its index, if the index still
+	 * maps it to {@code entry}.
+	 * <p>
+	 * Readers that already opened the entry can keep reading it.
+	 * </p>
+	 *
+	 * @param hostname   the host name.
+	 * @param encodedUrl the encoded URL.
+	 * @param entry      the index entry that is being removed.
+	 * @return {@code true} if the entry was removed.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	boolean remove(String hostname, String encodedUrl, CacheIndex.Entry entry) throws IOException;
+
+	/**
+	 * Reclaim the space used by removed or superseded entries, if the store
+	 * cannot do it at removal time.
+	 *
+	 * @throws IOException if an I/O error occurred.
+	 */
+	void compact() throws IOException;
+
+	/**
+	 * The output for a new entry.
+	 * <p>
+	 * Closing this stream has no effect: the entry must be either committed or
+	 * discarded.
+	 * </p>
+	 */
+	abstract class EntryOutput extends OutputStream {
+
+		/**
+		 * Make the entry visible in the store and its index, and release the
+		 * resources used by this output.
+		 *
+		 * @param status  the response status code, or {@code -1} if unknown.
+		 * @param expires the time after which the entry is stale, in milliseconds
+		 *                since the epoch, or {@code 0} if unknown.
+		 * @param blob    the hash of the blob that holds the body, or {@code null}
+		 *                if the body was written to this output.
+		 * @return the index entry that was superseded, or {@code null} if none.
+		 * @throws IOException if the entry could not be stored.
+		 */
+		abstract CacheIndex.Entry commit(int status, long expires, String blob) throws IOException;
+
+		/**
+		 * Drop the entry and release the resources used by this output.
+		 */
+		abstract void discard();
+
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+/**
+ * The limits applied by the background eviction of a {@link NetCache}.
+ * <p>
+ * When a size limit is exceeded, the entries are evicted in the configured
+ * order until the cache (or host) fits again. Stale entries are evicted first
+ * if expiry is enabled.
+ * </p>
+ */
+public class EvictionPolicy {
+
+	/**
+	 * The order in which entries are evicted.
+	 */
+	public enum Order {
+
+		/**
+		 * Least recently used first.
+		 */
+		LRU,
+
+		/**
+		 * Least frequently used first, then least recently used.
+		 */
+		LFU
+
+	}
+
+	private long maxBytes = 0;
+
+	private long maxHostBytes = 0;
+
+	private Order order = Order.LRU;
+
+	private boolean expire = false;
+
+	private long interval = 600000;
+
+	/**
+	 * Get the maximum size of the entries in the cache.
+	 *
+	 * @return the maximum size in bytes, or {@code 0} if unlimited.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the maximum size of the entries in the cache.
+	 *
+	 * @param maxBytes the maximum size in bytes, or {@code 0} if unlimited.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the maximum size of the entries of a single host.
+	 *
+	 * @return the maximum size in bytes, or {@code 0} if unlimited.
+	 */
+	public long getMaxHostBytes() {
+		return maxHostBytes;
+	}
+
+	/**
+	 * Set the maximum size of the entries of a single host.
+	 *
+	 * @param maxHostBytes the maximum size in bytes, or {@code 0} if unlimited.
+	 */
+	public void setMaxHostBytes(long maxHostBytes) {
+		this.maxHostBytes = maxHostBytes;
+	}
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public void setOrder(Order order) {
+		if (order == null) {
+			throw new NullPointerException("Null order");
+		}
+		this.order = order;
+	}
+
+	public boolean isExpireEnabled() {
+		return expire;
+	}
+
+	/**
+	 * If set to {@code true}, the entries that are stale according to the
+	 * {@code Cache-Control} or {@code Expires} headers of their response are
+	 * evicted.
+	 *
+	 * @param expire {@code true} to evict stale entries. Default is
+	 *               {@code false}.
+	 */
+	public void setExpireEnabled(boolean expire) {
+		this.expire = expire;
+	}
+
+	/**
+	 * Get the delay between two background eviction passes.
+	 *
+	 * @return the delay in milliseconds.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Set the delay between two background eviction passes.
+	 *
+	 * @param interval the delay in milliseconds. Default is ten minutes.
+	 */
+	public void setInterval(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Interval must be positive");
+		}
+		this.interval = interval;
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores each entry in its own file, under {@code cachedir/<host>/<encodedUrl>}.
+ * <p>
+ * Entries are written to a temporary file which is then atomically renamed,
+ * so concurrent readers never see a partial entry. Commits and removals of the
+ * same entry are serialized through striped locks, so that a removal never
+ * deletes a newer file.
+ * </p>
+ */
+class FileCacheStore implements CacheStore {
+
+	private final File cachedir;
+
+	private static final int LOCK_STRIPES = 64;
+
+	private final CacheIndex index;
+
+	private final Object[] entryLocks = new Object[LOCK_STRIPES];
+
+	FileCacheStore(File cachedir, CacheIndex index) {
+		super();
+		this.cachedir = cachedir;
+		this.index = index;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			entryLocks[i] = new Object();
+		}
+	}
+
+	private Object entryLock(String key) {
+		return entryLocks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Rebuild the index from the metadata files of the host directories.
+	 */
+	@Override
+	public void rebuildIndex() throws IOException {
+		File[] hostdirs = cachedir.listFiles();
+		if (hostdirs == null) {
+			return;
+		}
+		for (File hostdir : hostdirs) {
+			File metadata = new File(hostdir, NetCache.METADATA_FILENAME);
+			if (!metadata.isFile()) {
+				continue;
+			}
+			String hostname = hostdir.getName();
+			try (BufferedReader re = new BufferedReader(new InputStreamReader(
+					new FileInputStream(metadata), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = re.readLine()) != null) {
+					int idx = line.indexOf(' ');
+					if (idx <= 0) {
+						continue;
+					}
+					String encodedUrl = line.substring(0, idx);
+					File cachedfile = new File(hostdir, encodedUrl);
+					if (cachedfile.isFile()) {
+						index.putTransient(CacheIndex.key(hostname, encodedUrl),
+								new CacheIndex.Entry(-1, 0, cachedfile.length(),
+										readStatus(cachedfile), 0));
+					}
+				}
+			}
+		}
+	}
+
+	private static int readStatus(File cachedfile) throws IOException {
+		StringBuilder buf = new StringBuilder(4);
+		try (InputStream is = new FileInputStream(cachedfile)) {
+			int b;
+			while ((b = is.read()) >= '0' && b <= '9' && buf.length() < 3) {
+				buf.append((char) b);
+			}
+		}
+		if (buf.length() != 3) {
+			return -1;
+		}
+		return Integer.parseInt(buf.toString());
+	}
+
+	@Override
+	public EntryOutput createEntry(String hostname, String encodedUrl) throws IOException {
+		File hostdir = new File(cachedir, hostname);
+		if (!hostdir.isDirectory()) {
+			if (!hostdir.mkdirs() && !hostdir.isDirectory()) {
+				throw new IOException("Could not create directory " + hostdir.getAbsolutePath());
+			}
+		}
+		return new FileEntryOutput(hostname, encodedUrl, hostdir);
+	}
+
+	@Override
+	public InputStream openEntry(String hostname, String encodedUrl) throws IOException {
+		// The headers are read one byte at a time
+		return new BufferedInputStream(
+				new FileInputStream(new File(new File(cachedir, hostname), encodedUrl)), 8192);
+	}
+
+	@Override
+	public ByteBuffer readEntry(String hostname, String encodedUrl) throws IOException {
+		File cachedfile = new File(new File(cachedir, hostname), encodedUrl);
+		try (FileChannel channel = FileChannel.open(cachedfile.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size >= MAP_THRESHOLD) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			PackedCacheStore.readFully(channel, buf, 0);
+			buf.flip();
+			return buf;
+		}
+	}
+
+	@Override
+	public boolean remove(String hostname, String encodedUrl, CacheIndex.Entry entry)
+			throws IOException {
+		String key = CacheIndex.key(hostname, encodedUrl);
+		synchronized (entryLock(key)) {
+			if (!index.remove(key, entry)) {
+				return false;
+			}
+			new File(new File(cachedir, hostname), encodedUrl).delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Does nothing, as the files are deleted when their entries are removed.
+	 */
+	@Override
+	public void compact() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private class FileEntryOutput extends EntryOutput {
+
+		private final String hostname;
+
+		private final String encodedUrl;
+
+		private final File cachedfile;
+
+		private final File tmpfile;
+
+		private final OutputStream out;
+
+		private long length = 0;
+
+		FileEntryOutput(String hostname, String encodedUrl, File hostdir) throws IOException {
+			super();
+			this.hostname = hostname;
+			this.encodedUrl = encodedUrl;
+			this.cachedfile = new File(hostdir, encodedUrl);
+			this.tmpfile = File.createTempFile(encodedUrl, ".tmp", hostdir);
+			// The status line and headers are written in small pieces
+			out = new BufferedOutputStream(new FileOutputStream(tmpfile), 8192);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			length++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			length += len;
+		}
+
+		@Override
+		CacheIndex.Entry commit(int status, long expires, String blob) throws IOException {
+			out.close();
+			synchronized (entryLock(CacheIndex.key(hostname, encodedUrl))) {
+				try {
+					Files.move(tmpfile.toPath(), cachedfile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmpfile.toPath(), cachedfile.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					tmpfile.delete();
+					throw e;
+				}
+				return index.put(hostname, encodedUrl,
+						new CacheIndex.Entry(-1, 0, length, status, expires, blob));
+			}
+		}
+
+		@Override
+		void discard() {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			tmpfile.delete();
+		}
+
+	}
+
+}
@@ -11,48 +11,523 @@
 
 package io.sf.carte.net;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.GZIPInputStream;
 
-public class NetCache {
+/**
+ * A cache of network resources.
+ * <p>
+ * The cache can be used concurrently. Entries are made visible atomically, the
+ * per-host metadata files are protected by striped locks, and concurrent misses
+ * on the same URL through
+ * {@link #openConnection(URL, String, boolean, Origin)} are collapsed into a
+ * single network fetch.
+ * </p>
+ * <p>
+ * The cache grows without bounds unless an {@link EvictionPolicy} is set, in
+ * which case a background thread periodically evicts entries and reclaims
+ * their space, without locking the readers.
+ * </p>
+ */
+public class NetCache implements Closeable {
+
+	static final String METADATA_FILENAME = "metadata.txt";
+
+	/**
+	 * Pseudo-header that records the storage codec of an entry body.
+	 */
+	static final String CODEC_HEADER = "X-NetCache-Codec";
 
-	private static final String METADATA_FILENAME = "metadata.txt";
+	/**
+	 * Pseudo-header that gives the hash of the blob holding an entry body.
+	 */
+	static final String BLOB_HEADER = "X-NetCache-Blob";
+
+	private static final int LOCK_STRIPES = 32;
+
+	/**
+	 * How often a thread that waits for a streaming fetch checks whether the
+	 * stream was abandoned, in milliseconds.
+	 */
+	private static final long ABANDON_POLL_INTERVAL = 100;
 
 	private File cachedir = null;
 
+	private final CacheIndex index;
+
+	private final CacheStore store;
+
+	private final BlobStore blobs;
+
+	private boolean mapped = false;
+
+	private boolean deduplicated = false;
+
+	private boolean streaming = false;
+
+	private int connectTimeout = 100000;
+
+	private StorageCodec codec = StorageCodec.NONE;
+
+	private EvictionPolicy evictionPolicy = null;
+
+	private ScheduledExecutorService evictionExecutor = null;
+
+	/**
+	 * The last failure of a background eviction pass, reported at close.
+	 */
+	private volatile IOException evictionFailure = null;
+
+	private final Object[] hostLocks = new Object[LOCK_STRIPES];
+
+	/**
+	 * The fetches in progress, by index key.
+	 */
+	private final ConcurrentHashMap<String, Fetch> inflight = new ConcurrentHashMap<>();
+
+	/**
+	 * The streams of the streaming fetches in progress, which are enqueued when
+	 * their readers drop them.
+	 */
+	private final ReferenceQueue<TeeInputStream> abandonedStreams = new ReferenceQueue<>();
+
+	/**
+	 * Keeps the watches of the streams in progress reachable.
+	 */
+	private final Set<StreamWatch> streamWatches = ConcurrentHashMap.newKeySet();
+
+	{
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			hostLocks[i] = new Object();
+		}
+	}
+
 	public NetCache(File cachedir) {
 		super();
 		if (cachedir == null) {
 			throw new NullPointerException("Cache directory cannot be null");
 		}
 		this.cachedir = cachedir;
+		this.index = new CacheIndex(new File(cachedir, CacheIndex.INDEX_FILENAME));
+		this.store = new FileCacheStore(cachedir, index);
+		this.blobs = new BlobStore(new File(cachedir, BlobStore.BLOB_DIRNAME));
+		try {
+			if (!index.load()) {
+				rebuildIndex();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		countBlobReferences();
 	}
 
-	public boolean isCached(String hostname, String encodedUrl) {
-		File hostdir = new File(cachedir, hostname);
-		if (!hostdir.isDirectory()) {
+	/**
+	 * Construct a cache which optionally packs the entries into large segment
+	 * files, instead of using one file per URL.
+	 * <p>
+	 * The packed layout keeps its entries under the {@code pack} subdirectory. The
+	 * host directories are still used for the metadata files.
+	 * </p>
+	 * 
+	 * @param cachedir the cache directory.
+	 * @param packed   if {@code true}, use the packed layout.
+	 * @throws IOException if the index or the packed segments could not be
+	 *                     opened.
+	 */
+	public NetCache(File cachedir, boolean packed) throws IOException {
+		super();
+		if (cachedir == null) {
+			throw new NullPointerException("Cache directory cannot be null");
+		}
+		this.cachedir = cachedir;
+		boolean loaded;
+		if (packed) {
+			File packdir = new File(cachedir, PackedCacheStore.PACK_DIRNAME);
+			this.index = new CacheIndex(new File(packdir, CacheIndex.INDEX_FILENAME));
+			// The segments are checked against the index, so load it first
+			loaded = packdir.isDirectory() && index.load();
+			this.store = new PackedCacheStore(packdir, PackedCacheStore.DEFAULT_SEGMENT_SIZE, index);
+			// Each layout counts the references to its own blobs
+			this.blobs = new BlobStore(new File(packdir, BlobStore.BLOB_DIRNAME));
+		} else {
+			this.index = new CacheIndex(new File(cachedir, CacheIndex.INDEX_FILENAME));
+			this.store = new FileCacheStore(cachedir, index);
+			this.blobs = new BlobStore(new File(cachedir, BlobStore.BLOB_DIRNAME));
+			loaded = index.load();
+		}
+		if (!loaded) {
+			rebuildIndex();
+		}
+		countBlobReferences();
+	}
+
+	/**
+	 * Rebuild the binary index when it is missing or invalid.
+	 * <p>
+	 * With the index in memory, hit/miss checks do not touch the filesystem.
+	 * </p>
+	 * <p>
+	 * The stores only know the location and status of each entry, so the
+	 * headers are read to find the body blob and to recompute the expiry time.
+	 * </p>
+	 * 
+	 * @throws IOException if an I/O error occurred.
+	 */
+	private void rebuildIndex() throws IOException {
+		store.rebuildIndex();
+		URL base = cachedir.toURI().toURL();
+		for (Map.Entry<String, CacheIndex.Entry> mapentry : index.entrySet()) {
+			String key = mapentry.getKey();
+			int idx = key.indexOf('/');
+			CacheConnection ucon = new CacheConnection(base, store, blobs, key.substring(0, idx),
+					key.substring(idx + 1), false);
+			String blob;
+			long expires;
+			try {
+				ucon.connectHeaders();
+				blob = ucon.blob;
+				expires = storedExpiryTime(ucon);
+			} finally {
+				ucon.disconnect();
+			}
+			CacheIndex.Entry entry = mapentry.getValue();
+			if (expires != entry.expires) {
+				entry = entry.revalidate(expires);
+			}
+			if (blob != null) {
+				entry = entry.withBlob(blob);
+			}
+			if (entry != mapentry.getValue()) {
+				index.putTransient(key, entry);
+			}
+		}
+		index.rewrite();
+	}
+
+	/**
+	 * Compute the expiry time of a stored response.
+	 * <p>
+	 * A {@code max-age} directive is relative to the {@code Date} of the
+	 * response. If the response has no date, the time it was stored is not
+	 * known either, and the entry is considered stale.
+	 * </p>
+	 * 
+	 * @param ucon the connection to the stored entry.
+	 * @return the expiry time in milliseconds since the epoch, or {@code 0} if
+	 *         the response does not say.
+	 */
+	static long storedExpiryTime(URLConnection ucon) {
+		// A positive time in the distant past, as 0 means no expiry
+		long date = Math.max(ucon.getHeaderFieldDate("Date", 1), 1);
+		return expiryTime(ucon, date);
+	}
+
+	private void countBlobReferences() {
+		for (CacheIndex.Entry entry : index.values()) {
+			if (entry.blob != null) {
+				blobs.addReference(entry.blob);
+			}
+		}
+	}
+
+	/**
+	 * If set to {@code true}, the connections opened by this cache read the whole
+	 * entry into a buffer (memory-mapped if it is large) and parse the status and
+	 * headers from it, instead of reading them from a file stream.
+	 * 
+	 * @param mapped {@code true} to read the entries through buffers.
+	 */
+	public void setMemoryMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Set the codec used to store the body of new entries.
+	 * <p>
+	 * Entries already in the cache keep the codec they were stored with, and are
+	 * decompressed transparently when read.
+	 * </p>
+	 * 
+	 * @param codec the storage codec. Default is {@link StorageCodec#NONE}.
+	 */
+	public void setStorageCodec(StorageCodec codec) {
+		if (codec == null) {
+			throw new NullPointerException("Null codec");
+		}
+		this.codec = codec;
+	}
+
+	/**
+	 * Set the eviction policy, and schedule the background eviction passes.
+	 * <p>
+	 * The first pass runs after the interval configured by the policy.
+	 * </p>
+	 * 
+	 * @param policy the eviction policy, or {@code null} to stop evicting.
+	 */
+	public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+		if (evictionExecutor != null) {
+			evictionExecutor.shutdown();
+			evictionExecutor = null;
+		}
+		this.evictionPolicy = policy;
+		if (policy != null) {
+			evictionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "NetCache eviction");
+				thread.setDaemon(true);
+				return thread;
+			});
+			evictionExecutor.scheduleWithFixedDelay(() -> {
+				try {
+					evict();
+				} catch (IOException e) {
+					evictionFailure = e;
+				}
+			}, policy.getInterval(), policy.getInterval(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Run an eviction pass with the current policy, and then compact the store.
+	 * <p>
+	 * Stale entries are evicted first (if the policy enables expiry), then the
+	 * hosts that exceed the per-host limit are trimmed, and finally the whole
+	 * cache is trimmed to the global limit.
+	 * </p>
+	 * <p>
+	 * A body blob shared by several entries is counted once in each total, and
+	 * its size only counts as reclaimed when the last of those entries is
+	 * evicted.
+	 * </p>
+	 * 
+	 * @throws IOException if an I/O error occurred.
+	 */
+	public void evict() throws IOException {
+		EvictionPolicy policy = evictionPolicy;
+		if (policy == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<Candidate> candidates = new ArrayList<>(index.size());
+		for (Map.Entry<String, CacheIndex.Entry> mapentry : index.entrySet()) {
+			Candidate candidate = new Candidate(mapentry.getKey(), mapentry.getValue(), blobs);
+			if (policy.isExpireEnabled() && candidate.entry.expires != 0
+					&& candidate.entry.expires <= now) {
+				remove(candidate);
+			} else {
+				candidates.add(candidate);
+			}
+		}
+		// Least valuable first
+		Comparator<Candidate> order = Comparator.comparingLong(c -> c.lastAccess);
+		if (policy.getOrder() == EvictionPolicy.Order.LFU) {
+			order = Comparator.<Candidate>comparingInt(c -> c.hits).thenComparing(order);
+		}
+		candidates.sort(order);
+		long maxHostBytes = policy.getMaxHostBytes();
+		if (maxHostBytes > 0) {
+			Map<String, Usage> hostUsage = new HashMap<>();
+			for (Candidate candidate : candidates) {
+				hostUsage.computeIfAbsent(candidate.hostname, h -> new Usage()).add(candidate);
+			}
+			Iterator<Candidate> it = candidates.iterator();
+			while (it.hasNext()) {
+				Candidate candidate = it.next();
+				Usage usage = hostUsage.get(candidate.hostname);
+				if (usage.bytes > maxHostBytes && remove(candidate)) {
+					usage.subtract(candidate);
+					it.remove();
+				}
+			}
+		}
+		long maxBytes = policy.getMaxBytes();
+		if (maxBytes > 0) {
+			Usage usage = new Usage();
+			for (Candidate candidate : candidates) {
+				usage.add(candidate);
+			}
+			Iterator<Candidate> it = candidates.iterator();
+			while (usage.bytes > maxBytes && it.hasNext()) {
+				Candidate candidate = it.next();
+				if (remove(candidate)) {
+					usage.subtract(candidate);
+				}
+			}
+		}
+		store.compact();
+		index.compactJournal();
+	}
+
+	/**
+	 * Remove the entry of the given candidate, unless it was superseded or
+	 * removed since the candidate was created.
+	 * 
+	 * @return {@code true} if the entry was removed.
+	 */
+	private boolean remove(Candidate candidate) throws IOException {
+		if (!store.remove(candidate.hostname, candidate.encodedUrl, candidate.entry)) {
 			return false;
 		}
-		File cachedfile = new File(hostdir, encodedUrl);
-		return cachedfile.canRead();
+		if (candidate.entry.blob != null) {
+			blobs.release(candidate.entry.blob);
+		}
+		return true;
+	}
+
+	/**
+	 * An entry that may be evicted, with a snapshot of its access statistics.
+	 */
+	private static class Candidate {
+
+		final String hostname;
+
+		final String encodedUrl;
+
+		final CacheIndex.Entry entry;
+
+		final long lastAccess;
+
+		final int hits;
+
+		/**
+		 * The size of the blob that holds the body, or {@code 0} if none.
+		 */
+		final long blobSize;
+
+		Candidate(String key, CacheIndex.Entry entry, BlobStore blobs) {
+			super();
+			int idx = key.indexOf('/');
+			this.hostname = key.substring(0, idx);
+			this.encodedUrl = key.substring(idx + 1);
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+			this.hits = entry.hits.get();
+			this.blobSize = entry.blob != null ? blobs.size(entry.blob) : 0;
+		}
+
+	}
+
+	/**
+	 * The bytes used by a set of entries, counting each shared blob once.
+	 */
+	private static class Usage {
+
+		long bytes = 0;
+
+		/**
+		 * The number of entries in the set that point to each blob.
+		 */
+		private final Map<String, Integer> blobRefs = new HashMap<>();
+
+		void add(Candidate candidate) {
+			bytes += candidate.entry.length;
+			String blob = candidate.entry.blob;
+			if (blob != null && blobRefs.merge(blob, 1, Integer::sum) == 1) {
+				bytes += candidate.blobSize;
+			}
+		}
+
+		void subtract(Candidate candidate) {
+			bytes -= candidate.entry.length;
+			String blob = candidate.entry.blob;
+			if (blob != null && blobRefs.merge(blob, -1, Integer::sum) == 0) {
+				blobRefs.remove(blob);
+				bytes -= candidate.blobSize;
+			}
+		}
+
+	}
+
+	/**
+	 * If set to {@code true}, the bodies of new entries are stored in blobs named
+	 * after the hash of their content, so identical bodies served from different
+	 * URLs are stored only once.
+	 * <p>
+	 * The blobs are stored with the current storage codec, and deleted when no
+	 * entry points to them.
+	 * </p>
+	 * 
+	 * @param deduplicated {@code true} to deduplicate the bodies.
+	 */
+	public void setDeduplicated(boolean deduplicated) {
+		this.deduplicated = deduplicated;
+	}
+
+	/**
+	 * If set to {@code true}, the connections returned by
+	 * {@link #openConnection(URL, String, boolean, Origin)} for URLs that are not
+	 * cached read the body from the network while storing it in the cache,
+	 * instead of storing the whole body first and then reading it from the cache.
+	 * <p>
+	 * The entry becomes visible when the body has been read or the stream
+	 * closed. Other threads requesting the same URL meanwhile wait for it, unless
+	 * the stream makes no progress for the connect timeout, in which case they
+	 * open their own connection to the origin. A stream that is abandoned
+	 * without being closed is dropped when it is garbage collected.
+	 * </p>
+	 * 
+	 * @param streaming {@code true} to stream the new entries.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Set the connect timeout of the network connections.
+	 * <p>
+	 * It also limits how long a thread waits for another thread that is
+	 * retrieving the same URL, if that retrieval makes no progress. When the
+	 * limit is reached, the waiting thread fails with an {@code IOException}
+	 * instead of retrieving the URL a second time.
+	 * </p>
+	 * 
+	 * @param timeout the timeout in milliseconds. Default is 100000.
+	 */
+	public void setConnectTimeout(int timeout) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Timeout must be positive");
+		}
+		this.connectTimeout = timeout;
+	}
+
+	public boolean isCached(String hostname, String encodedUrl) {
+		return index.contains(hostname, encodedUrl);
 	}
 
 	public File getCacheDirectory() {
@@ -64,56 +539,128 @@ public class NetCache {
 	}
 
 	public void cacheFile(URL url, String encodedUrl, URLConnection ucon) throws IOException {
+		prepareConnection(ucon);
+		storeEntry(url, encodedUrl, ucon);
+	}
+
+	private void prepareConnection(URLConnection ucon) {
+		ucon.setConnectTimeout(connectTimeout);
+		ucon.setAllowUserInteraction(false);
+	}
+
+	private void storeEntry(URL url, String encodedUrl, URLConnection ucon) throws IOException {
+		makeHostDirectory(url);
+		long contentLen;
+		CacheStore.EntryOutput out = store.createEntry(url.getHost(), encodedUrl);
+		BlobStore.BlobOutput blobOut = null;
+		try {
+			if (deduplicated) {
+				blobOut = blobs.create(codec);
+			}
+			contentLen = writeEntry(ucon, out, codec, blobOut);
+			commitEntry(ucon, out, blobOut);
+		} catch (IOException e) {
+			out.discard();
+			if (blobOut != null) {
+				blobOut.discard();
+			}
+			throw e;
+		}
+		updateMetadata(url, encodedUrl, contentLen);
+	}
+
+	private void makeHostDirectory(URL url) throws IOException {
 		File hostdir = getHostDirectory(url);
 		if (!hostdir.isDirectory()) {
-			if (!hostdir.mkdirs()) {
+			if (!hostdir.mkdirs() && !hostdir.isDirectory()) {
 				throw new IOException("Could not create directory " + hostdir.getAbsolutePath());
 			}
 		}
-		File cachedfile = new File(hostdir, encodedUrl);
-		ucon.setConnectTimeout(100000);
-		ucon.setAllowUserInteraction(false);
-		InputStream is = null;
-		long contentLen = 0;
-		try (FileOutputStream out = new FileOutputStream(cachedfile)) {
-			Charset charset = StandardCharsets.UTF_8;
-			boolean contentEncodingGzip = false;
-			ucon.connect();
-			// Response code
-			if (ucon instanceof HttpURLConnection) {
-				int code = ((HttpURLConnection) ucon).getResponseCode();
-				String message = ((HttpURLConnection) ucon).getResponseMessage();
-				out.write(Integer.toString(code).trim().getBytes(charset));
-				if (message != null && message.length() > 0) {
-					out.write(32);
-					out.write(message.getBytes(charset));
-				}
-				out.write(10); // LF
-			}
-			Map<String, List<String>> headers = ucon.getHeaderFields();
-			Iterator<Entry<String, List<String>>> it = headers.entrySet().iterator();
-			while(it.hasNext()) {
-				Entry<String, List<String>> entry = it.next();
-				String hdrname = entry.getKey();
-				List<String> vlist = entry.getValue();
-				if (hdrname != null && vlist.size() != 0) {
-					if (hdrname.equalsIgnoreCase("Content-Encoding")) {
-						Iterator<String> ecit = vlist.iterator();
-						while (ecit.hasNext()) {
-							if ("gzip".equalsIgnoreCase(ecit.next())) {
-								contentEncodingGzip = true;
-							}
-						}
-					}
-					if (!contentEncodingGzip) {
-						out.write(hdrname.getBytes(charset));
-						out.write(58);
-						out.write(vlist.get(vlist.size() - 1).getBytes(charset));
-						out.write(10); // LF
+	}
+
+	private void commitEntry(URLConnection ucon, CacheStore.EntryOutput out,
+			BlobStore.BlobOutput blobOut) throws IOException {
+		int status = -1;
+		if (ucon instanceof HttpURLConnection) {
+			status = ((HttpURLConnection) ucon).getResponseCode();
+		}
+		CacheIndex.Entry superseded = out.commit(status,
+				expiryTime(ucon, System.currentTimeMillis()),
+				blobOut != null ? blobOut.getHash() : null);
+		if (superseded != null && superseded.blob != null) {
+			blobs.release(superseded.blob);
+		}
+	}
+
+	private void updateMetadata(URL url, String encodedUrl, long contentLen) throws IOException {
+		File metadata = new File(getHostDirectory(url), METADATA_FILENAME);
+		synchronized (hostLock(url.getHost())) {
+			PrintStream wri = new PrintStream(new FileOutputStream(metadata, true));
+			wri.append(encodedUrl);
+			wri.append(' ');
+			wri.printf(Locale.ROOT, "%10d", contentLen);
+			wri.append(' ');
+			wri.append(url.getFile());
+			String query = url.getQuery();
+			if (query != null) {
+				wri.append('?').append(query);
+			}
+			wri.println();
+			wri.close();
+		}
+	}
+
+	/**
+	 * Compute the time after which a response is stale, from its
+	 * {@code Cache-Control} {@code max-age} directive or, if absent, its
+	 * {@code Expires} header.
+	 * 
+	 * @param ucon the connection.
+	 * @param now  the current time.
+	 * @return the expiry time in milliseconds since the epoch, or {@code 0} if
+	 *         the response does not say.
+	 */
+	static long expiryTime(URLConnection ucon, long now) {
+		String cacheControl = ucon.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase(Locale.ROOT);
+				if (directive.startsWith("max-age=")) {
+					try {
+						long maxAge = Long.parseLong(directive.substring(8).replace("\"", ""));
+						return now + Math.max(maxAge, 0) * 1000;
+					} catch (NumberFormatException e) {
 					}
 				}
 			}
-			out.write(10); // LF
+		}
+		long expires = ucon.getHeaderFieldDate("Expires", 0);
+		return expires > 0 ? expires : 0;
+	}
+
+	private Object hostLock(String hostname) {
+		return hostLocks[(hostname.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Write the response status, headers and body of the given connection.
+	 * 
+	 * @param ucon    the connection.
+	 * @param out     the output stream.
+	 * @param codec   the codec used to store the body.
+	 * @param blobOut the blob output where the body is written, or {@code null}
+	 *                to write it to {@code out}.
+	 * @return the length of the body, before being encoded by the codec.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	private static long writeEntry(URLConnection ucon, OutputStream out, StorageCodec codec,
+			BlobStore.BlobOutput blobOut) throws IOException {
+		InputStream is = null;
+		OutputStream bodyOut = null;
+		long contentLen = 0;
+		try {
+			boolean contentEncodingGzip = writeHead(ucon, out);
+			bodyOut = openBody(out, codec, blobOut);
 			is = ucon.getInputStream();
 			if (contentEncodingGzip) {
 				is = new GZIPInputStream(is);
@@ -121,13 +668,18 @@ public class NetCache {
 			byte[] bbuf = new byte[4096];
 			int numbytes;
 			while ((numbytes = is.read(bbuf)) != -1) {
-				out.write(bbuf, 0, numbytes);
+				bodyOut.write(bbuf, 0, numbytes);
 				contentLen += numbytes;
 			}
-		} catch (IOException e) {
-			cachedfile.delete();
-			throw e;
+			closeBody(out, bodyOut, blobOut);
+			bodyOut = null;
 		} finally {
+			if (bodyOut != null && bodyOut != out && bodyOut != blobOut) {
+				try {
+					bodyOut.close();
+				} catch (IOException e) {
+				}
+			}
 			if (is != null) {
 				try {
 					is.close();
@@ -135,52 +687,725 @@ public class NetCache {
 				}
 			}
 		}
-		// Update metadata
-		File metadata = new File(hostdir, METADATA_FILENAME);
-		PrintStream wri = new PrintStream(new FileOutputStream(metadata, true));
-		wri.append(encodedUrl);
-		wri.append(' ');
-		wri.printf(Locale.ROOT, "%10d", contentLen);
-		wri.append(' ');
-		wri.append(url.getFile());
-		String query = url.getQuery();
-		if (query != null) {
-			wri.append('?').append(query);
+		return contentLen;
+	}
+
+	/**
+	 * Write the response status and headers of the given connection, without the
+	 * empty line that ends the headers.
+	 * 
+	 * @param ucon the connection.
+	 * @param out  the output stream.
+	 * @return {@code true} if the body is gzip-encoded.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	static boolean writeHead(URLConnection ucon, OutputStream out) throws IOException {
+		Charset charset = StandardCharsets.UTF_8;
+		boolean contentEncodingGzip = false;
+		ucon.connect();
+		// Response code
+		if (ucon instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection) ucon).getResponseCode();
+			String message = ((HttpURLConnection) ucon).getResponseMessage();
+			out.write(Integer.toString(code).trim().getBytes(charset));
+			if (message != null && message.length() > 0) {
+				out.write(32);
+				out.write(message.getBytes(charset));
+			}
+			out.write(10); // LF
+		}
+		Map<String, List<String>> headers = ucon.getHeaderFields();
+		Iterator<Entry<String, List<String>>> it = headers.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<String, List<String>> entry = it.next();
+			String hdrname = entry.getKey();
+			List<String> vlist = entry.getValue();
+			if (hdrname != null && vlist.size() != 0) {
+				if (hdrname.equalsIgnoreCase("Content-Encoding")) {
+					Iterator<String> ecit = vlist.iterator();
+					while (ecit.hasNext()) {
+						if ("gzip".equalsIgnoreCase(ecit.next())) {
+							contentEncodingGzip = true;
+						}
+					}
+				}
+				if (!contentEncodingGzip) {
+					out.write(hdrname.getBytes(charset));
+					out.write(58);
+					out.write(vlist.get(vlist.size() - 1).getBytes(charset));
+					out.write(10); // LF
+				}
+			}
 		}
-		wri.println();
-		wri.close();
+		return contentEncodingGzip;
+	}
+
+	/**
+	 * End the headers and obtain the stream where the body must be written.
+	 * 
+	 * @param out     the entry output stream.
+	 * @param codec   the codec used to store the body.
+	 * @param blobOut the blob output, or {@code null} if the body is written to
+	 *                {@code out}.
+	 * @return the body stream.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	private static OutputStream openBody(OutputStream out, StorageCodec codec,
+			BlobStore.BlobOutput blobOut) throws IOException {
+		if (blobOut != null) {
+			return blobOut;
+		}
+		if (codec != StorageCodec.NONE) {
+			writeHeader(out, CODEC_HEADER, codec.getName());
+		}
+		out.write(10); // LF
+		return codec.compress(out);
+	}
+
+	/**
+	 * Complete a body written to the stream returned by
+	 * {@link #openBody(OutputStream, StorageCodec, BlobStore.BlobOutput)}.
+	 */
+	private static void closeBody(OutputStream out, OutputStream bodyOut,
+			BlobStore.BlobOutput blobOut) throws IOException {
+		if (blobOut == null) {
+			// Closing the entry output neither commits nor discards it
+			bodyOut.close();
+		} else {
+			// The blob header goes last, as it needs the hash of the body
+			writeHeader(out, BLOB_HEADER, blobOut.commit());
+			out.write(10); // LF
+		}
+	}
+
+	private static void writeHeader(OutputStream out, String name, String value)
+			throws IOException {
+		out.write(name.getBytes(StandardCharsets.UTF_8));
+		out.write(58);
+		out.write(value.getBytes(StandardCharsets.UTF_8));
+		out.write(10); // LF
+	}
+
+	/**
+	 * Open a connection to the cached copy of the given URL, retrieving it from
+	 * the origin first if it is not in the cache or a refresh is requested.
+	 * <p>
+	 * If several threads request the same URL while it is being retrieved, only
+	 * one fetch is made and the other threads wait for it to complete.
+	 * </p>
+	 * <p>
+	 * When refreshing a successful cached response which has an {@code ETag} or
+	 * {@code Last-Modified} header, the request is made conditional, and the
+	 * cached body is kept if the origin answers {@code 304 Not Modified}.
+	 * </p>
+	 * 
+	 * @param url        the URL.
+	 * @param encodedUrl the encoded URL.
+	 * @param refresh    if {@code true}, retrieve the URL even if it is cached.
+	 * @param origin     the origin used to open a network connection.
+	 * @return the connection to the cached entry.
+	 * @throws IOException if the URL could not be retrieved or the entry could not
+	 *                     be opened.
+	 */
+	public URLConnection openConnection(URL url, String encodedUrl, boolean refresh,
+			Origin origin) throws IOException {
+		String hostname = url.getHost();
+		if (refresh || !isCached(hostname, encodedUrl)) {
+			URLConnection ucon = fetch(url, encodedUrl, refresh, origin);
+			if (ucon != null) {
+				return ucon;
+			}
+		}
+		return openConnection(hostname, encodedUrl);
+	}
+
+	/**
+	 * Retrieve the given URL, or wait for the thread that is retrieving it.
+	 * 
+	 * @return the streaming connection if this thread retrieves the URL in
+	 *         streaming mode, {@code null} if the entry was already stored.
+	 */
+	private URLConnection fetch(URL url, String encodedUrl, boolean refresh, Origin origin)
+			throws IOException {
+		String key = CacheIndex.key(url.getHost(), encodedUrl);
+		for (;;) {
+			releaseAbandonedStreams();
+			Fetch fetch = new Fetch();
+			Fetch running = inflight.putIfAbsent(key, fetch);
+			if (running == null) {
+				fetch.whenComplete((v, e) -> inflight.remove(key, fetch));
+				try {
+					// Another fetch may have completed since the caller checked
+					if (!isCached(url.getHost(), encodedUrl)) {
+						URLConnection ucon = origin.openConnection(url);
+						if (streaming) {
+							// The stream completes the fetch
+							return streamEntry(url, encodedUrl, ucon, fetch);
+						}
+						cacheFile(url, encodedUrl, ucon);
+					} else if (refresh) {
+						revalidate(url, encodedUrl, origin.openConnection(url));
+					}
+					fetch.complete(null);
+				} catch (IOException | RuntimeException | Error e) {
+					fetch.completeExceptionally(e);
+					throw e;
+				}
+				return null;
+			}
+			try {
+				awaitFetch(running);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while retrieving " + url.toExternalForm());
+			} catch (TimeoutException e) {
+				// The streaming reader stalled. Do not bypass the cache with a second
+				// retrieval of the same URL.
+				throw new IOException("The retrieval of " + url.toExternalForm()
+						+ " made no progress in " + connectTimeout + " ms", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof AbandonedStreamException) {
+					// Nothing was stored, try again
+					inflight.remove(key, running);
+					continue;
+				} else if (cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IOException(cause);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for a fetch of another thread, for as long as it makes progress.
+	 * <p>
+	 * While waiting, the streams that were dropped by their readers are
+	 * released, so that a fetch whose stream was abandoned fails instead of
+	 * stalling.
+	 * </p>
+	 * 
+	 * @param running the fetch.
+	 * @throws TimeoutException     if the fetch made no progress for the connect
+	 *                              timeout.
+	 * @throws InterruptedException if the thread was interrupted.
+	 * @throws ExecutionException   if the fetch failed.
+	 */
+	private void awaitFetch(Fetch running)
+			throws TimeoutException, InterruptedException, ExecutionException {
+		for (;;) {
+			long idle = System.currentTimeMillis() - running.lastProgress;
+			if (idle >= connectTimeout) {
+				// Last chance
+				releaseAbandonedStreams();
+				running.get(0, TimeUnit.MILLISECONDS);
+				return;
+			}
+			try {
+				running.get(Math.min(connectTimeout - idle, ABANDON_POLL_INTERVAL),
+						TimeUnit.MILLISECONDS);
+				return;
+			} catch (TimeoutException e) {
+				releaseAbandonedStreams();
+			}
+		}
+	}
+
+	/**
+	 * Fail the fetches whose streams were dropped by their readers without being
+	 * read to the end or closed.
+	 */
+	private void releaseAbandonedStreams() {
+		StreamWatch watch;
+		while ((watch = (StreamWatch) abandonedStreams.poll()) != null) {
+			streamWatches.remove(watch);
+			watch.state.fail(new AbandonedStreamException(watch.state.url));
+		}
+	}
+
+	/**
+	 * A retrieval in progress, which streaming readers keep alive while they read.
+	 */
+	private static class Fetch extends CompletableFuture<Void> {
+
+		volatile long lastProgress = System.currentTimeMillis();
+
+	}
+
+	/**
+	 * A streaming reader dropped its stream without reading or closing it.
+	 */
+	private static class AbandonedStreamException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		AbandonedStreamException(URL url) {
+			super("Stream abandoned: " + url.toExternalForm());
+		}
+
+	}
+
+	/**
+	 * Open a connection whose body is read from the network while it is being
+	 * stored in the cache.
+	 * <p>
+	 * The entry is committed when the body has been read completely. If the
+	 * stream is closed earlier, the rest of the body is read and stored first.
+	 * </p>
+	 * 
+	 * @param url        the URL.
+	 * @param encodedUrl the encoded URL.
+	 * @param ucon       the network connection.
+	 * @param fetch      the fetch to complete when the entry is stored or
+	 *                   dropped.
+	 * @return the streaming connection.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	private URLConnection streamEntry(URL url, String encodedUrl, URLConnection ucon,
+			Fetch fetch) throws IOException {
+		prepareConnection(ucon);
+		makeHostDirectory(url);
+		CacheStore.EntryOutput out = store.createEntry(url.getHost(), encodedUrl);
+		BlobStore.BlobOutput blobOut = null;
+		OutputStream bodyOut = null;
+		try {
+			if (deduplicated) {
+				blobOut = blobs.create(codec);
+			}
+			ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+			boolean contentEncodingGzip = writeHead(ucon, head);
+			head.writeTo(out);
+			bodyOut = openBody(out, codec, blobOut);
+			InputStream is = ucon.getInputStream();
+			if (contentEncodingGzip) {
+				is = new GZIPInputStream(is);
+			}
+			TeeInputStream tee = new TeeInputStream(new StreamState(url, encodedUrl, ucon, is, out,
+					blobOut, bodyOut, fetch));
+			File cachedfile = new File(getHostDirectory(url), encodedUrl);
+			return new CacheConnection(cachedfile.toURI().toURL(), head.toByteArray(), tee);
+		} catch (IOException | RuntimeException e) {
+			if (bodyOut != null && bodyOut != out && bodyOut != blobOut) {
+				try {
+					bodyOut.close();
+				} catch (IOException e1) {
+				}
+			}
+			out.discard();
+			if (blobOut != null) {
+				blobOut.discard();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Passes the body read from the network to the reader, while writing it to
+	 * the cache entry.
+	 * <p>
+	 * The state of the retrieval is kept apart from the stream, so that it can
+	 * be released once the stream is no longer reachable.
+	 * </p>
+	 */
+	private class TeeInputStream extends InputStream {
+
+		private final StreamState state;
+
+		TeeInputStream(StreamState state) {
+			super();
+			this.state = state;
+			state.watch = new StreamWatch(this, state);
+			streamWatches.add(state.watch);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n;
+			while ((n = read(b, 0, 1)) == 0) {
+			}
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return state.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return state.finished ? 0 : state.in.available();
+		}
+
+		/**
+		 * Store the rest of the body, and commit the entry.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!state.finished) {
+				byte[] buf = new byte[4096];
+				while (read(buf, 0, buf.length) != -1) {
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The retrieval behind a {@link TeeInputStream}.
+	 */
+	private class StreamState {
+
+		private final URL url;
+
+		private final String encodedUrl;
+
+		private final URLConnection ucon;
+
+		private final InputStream in;
+
+		private final CacheStore.EntryOutput out;
+
+		private final BlobStore.BlobOutput blobOut;
+
+		private final OutputStream bodyOut;
+
+		private final Fetch fetch;
+
+		private long contentLen = 0;
+
+		private volatile boolean finished = false;
+
+		private StreamWatch watch = null;
+
+		StreamState(URL url, String encodedUrl, URLConnection ucon, InputStream in,
+				CacheStore.EntryOutput out, BlobStore.BlobOutput blobOut, OutputStream bodyOut,
+				Fetch fetch) {
+			super();
+			this.url = url;
+			this.encodedUrl = encodedUrl;
+			this.ucon = ucon;
+			this.in = in;
+			this.out = out;
+			this.blobOut = blobOut;
+			this.bodyOut = bodyOut;
+			this.fetch = fetch;
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				return -1;
+			}
+			int n;
+			try {
+				n = in.read(b, off, len);
+				if (n > 0) {
+					bodyOut.write(b, off, n);
+					contentLen += n;
+					fetch.lastProgress = System.currentTimeMillis();
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+				throw e;
+			}
+			if (n == -1) {
+				finish();
+			}
+			return n;
+		}
+
+		private void finish() throws IOException {
+			finished = true;
+			try {
+				in.close();
+				closeBody(out, bodyOut, blobOut);
+				commitEntry(ucon, out, blobOut);
+				updateMetadata(url, encodedUrl, contentLen);
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+				throw e;
+			}
+			unwatch();
+			fetch.complete(null);
+		}
+
+		private void unwatch() {
+			if (watch != null) {
+				streamWatches.remove(watch);
+				watch.clear();
+			}
+		}
+
+		/**
+		 * Drop the entry, and complete the fetch with the given failure.
+		 * 
+		 * @param e the failure.
+		 */
+		void fail(Exception e) {
+			if (fetch.isDone()) {
+				return;
+			}
+			finished = true;
+			try {
+				in.close();
+			} catch (IOException e1) {
+			}
+			if (bodyOut != out && bodyOut != blobOut) {
+				try {
+					bodyOut.close();
+				} catch (IOException e1) {
+				}
+			}
+			out.discard();
+			if (blobOut != null) {
+				blobOut.discard();
+			}
+			unwatch();
+			fetch.completeExceptionally(e);
+		}
+
+	}
+
+	/**
+	 * Enqueued when the reader drops a {@link TeeInputStream}, so its retrieval
+	 * can be released without waiting for a finalizer.
+	 */
+	private class StreamWatch extends PhantomReference<TeeInputStream> {
+
+		final StreamState state;
+
+		StreamWatch(TeeInputStream stream, StreamState state) {
+			super(stream, abandonedStreams);
+			this.state = state;
+		}
+
+	}
+
+	/**
+	 * Refresh a cached entry, with a conditional request if the entry has
+	 * validators.
+	 * 
+	 * @param url        the URL.
+	 * @param encodedUrl the encoded URL.
+	 * @param ucon       the unconnected network connection.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	private void revalidate(URL url, String encodedUrl, URLConnection ucon) throws IOException {
+		prepareConnection(ucon);
+		String hostname = url.getHost();
+		CacheIndex.Entry entry = index.get(hostname, encodedUrl);
+		if (entry != null && entry.status == HttpURLConnection.HTTP_OK
+				&& ucon instanceof HttpURLConnection) {
+			String etag, lastModified;
+			CacheConnection cached = new CacheConnection(url, store, blobs, hostname, encodedUrl,
+					false);
+			try {
+				cached.connectHeaders();
+				etag = cached.getHeaderField("ETag");
+				lastModified = cached.getHeaderField("Last-Modified");
+			} finally {
+				cached.disconnect();
+			}
+			if (etag != null || lastModified != null) {
+				if (etag != null) {
+					ucon.setRequestProperty("If-None-Match", etag.trim());
+				}
+				if (lastModified != null) {
+					ucon.setRequestProperty("If-Modified-Since", lastModified.trim());
+				}
+				if (((HttpURLConnection) ucon).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					try {
+						ucon.getInputStream().close();
+					} catch (IOException e) {
+					}
+					// Keep the body, but renew the expiry time
+					index.replace(CacheIndex.key(hostname, encodedUrl), entry,
+							entry.revalidate(expiryTime(ucon, System.currentTimeMillis())));
+					return;
+				}
+			}
+		}
+		storeEntry(url, encodedUrl, ucon);
 	}
 
 	public URLConnection openConnection(String hostname, String encodedUrl) throws IOException {
+		CacheIndex.Entry entry = index.get(hostname, encodedUrl);
+		if (entry != null) {
+			entry.touch();
+		}
 		File cachedfile = new File(new File(cachedir, hostname), encodedUrl);
-		return new CacheConnection(cachedfile);
+		return new CacheConnection(cachedfile.toURI().toURL(), store, blobs, hostname, encodedUrl,
+				mapped);
+	}
+
+	/**
+	 * Stop the background eviction and close the store and the index.
+	 * <p>
+	 * If an eviction policy was set, the index is rewritten so that the access
+	 * statistics are kept for the next session.
+	 * </p>
+	 * 
+	 * @throws IOException if an I/O error occurred, or a background eviction pass
+	 *                     failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		boolean evicting;
+		synchronized (this) {
+			evicting = evictionPolicy != null;
+			if (evictionExecutor != null) {
+				evictionExecutor.shutdown();
+				try {
+					evictionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				evictionExecutor = null;
+			}
+		}
+		try {
+			if (evicting) {
+				index.rewrite();
+			}
+			store.close();
+		} finally {
+			index.close();
+		}
+		IOException failure = evictionFailure;
+		if (failure != null) {
+			evictionFailure = null;
+			throw failure;
+		}
+	}
+
+	/**
+	 * Opens network connections to the origin of a resource.
+	 */
+	@FunctionalInterface
+	public interface Origin {
+
+		URLConnection openConnection(URL url) throws IOException;
+
 	}
 
 	static class CacheConnection extends HttpURLConnection {
 
-		private final File cachedfile;
+		private final CacheStore store;
+
+		private final BlobStore blobs;
+
+		private final String hostname;
+
+		private final String encodedUrl;
+
+		private final boolean mapped;
 
 		private final LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>(32);
 
 		long contentLength = -1;
 
-		private FileInputStream inputStream = null;
+		private InputStream inputStream = null;
 
 		private int statusCode = -1;
 
 		private String statusMessage = null;
 
-		protected CacheConnection(File cachedfile) throws MalformedURLException {
-			super(cachedfile.toURI().toURL());
-			this.cachedfile = cachedfile;
+		/**
+		 * The hash of the blob that holds the body, if any.
+		 */
+		String blob = null;
+
+		protected CacheConnection(URL url, CacheStore store, BlobStore blobs, String hostname,
+				String encodedUrl, boolean mapped) {
+			super(url);
+			this.store = store;
+			this.blobs = blobs;
+			this.hostname = hostname;
+			this.encodedUrl = encodedUrl;
+			this.mapped = mapped;
+		}
+
+		/**
+		 * Construct a connection to an entry that is being stored.
+		 * 
+		 * @param url  the URL.
+		 * @param head the status line and headers, without the final empty line.
+		 * @param body the body stream.
+		 */
+		CacheConnection(URL url, byte[] head, InputStream body) {
+			this(url, null, null, null, null, false);
+			ByteBuffer buf = ByteBuffer.wrap(head);
+			parseStatusLine(readLine(buf));
+			while (buf.hasRemaining()) {
+				parseHeader(readLine(buf));
+			}
+			inputStream = body;
+			connected = true;
 		}
 
 		@Override
 		public void connect() throws IOException {
+			if (store == null) {
+				// Streaming connection
+				connected = true;
+				return;
+			}
+			connectHeaders();
+			if (blob != null) {
+				inputStream.close();
+				inputStream = blobs.openBlob(blob);
+				contentLength = -1;
+			}
+		}
+
+		/**
+		 * Read the status and headers of the entry, without opening its blob.
+		 */
+		void connectHeaders() throws IOException {
 			connected = true;
 
-			inputStream = new FileInputStream(cachedfile);
-			String line = readLine();
+			String line;
+			if (mapped) {
+				ByteBuffer buf = store.readEntry(hostname, encodedUrl);
+				parseStatusLine(readLine(buf));
+				// Headers
+				while ((line = readLine(buf)).length() != 0) {
+					parseHeader(line);
+				}
+				contentLength = buf.remaining();
+				inputStream = new ByteBufferInputStream(buf);
+			} else {
+				inputStream = store.openEntry(hostname, encodedUrl);
+				parseStatusLine(readLine());
+				// Headers
+				while ((line = readLine()).length() != 0) {
+					parseHeader(line);
+				}
+				contentLength = inputStream.available();
+			}
+			String codecName = headers.remove(CODEC_HEADER.toLowerCase(Locale.ROOT));
+			if (codecName != null) {
+				StorageCodec codec;
+				try {
+					codec = StorageCodec.forName(codecName);
+				} catch (IllegalArgumentException e) {
+					inputStream.close();
+					throw new IOException("Unknown storage codec in cache entry: " + codecName);
+				}
+				inputStream = codec.decompress(inputStream);
+				// The decoded length is not known in advance
+				contentLength = -1;
+			}
+			blob = headers.remove(BLOB_HEADER.toLowerCase(Locale.ROOT));
+		}
+
+		private void parseStatusLine(String line) {
 			int iws = line.indexOf(' ');
 			if (iws > 1) {
 				statusMessage = line.substring(iws + 1);
@@ -191,17 +1416,11 @@ public class NetCache {
 			} catch (NumberFormatException e) {
 				statusCode = 200;
 			}
+		}
 
-			// Headers
-			do {
-				line = readLine();
-				if (line.length() == 0) {
-					break;
-				}
-				int klen = line.indexOf(':');
-				headers.put(line.substring(0, klen).toLowerCase(Locale.ROOT), line.substring(klen + 1));
-			} while(true);
-			contentLength = inputStream.available();
+		private void parseHeader(String line) {
+			int klen = line.indexOf(':');
+			headers.put(line.substring(0, klen).toLowerCase(Locale.ROOT), line.substring(klen + 1));
 		}
 
 		@Override
@@ -227,6 +1446,21 @@ public class NetCache {
 			return buf.toString();
 		}
 
+		private static String readLine(ByteBuffer buf) {
+			int start = buf.position();
+			int end = start;
+			int limit = buf.limit();
+			while (end < limit && buf.get(end) != 10) {
+				end++;
+			}
+			byte[] b = new byte[end - start];
+			buf.get(b);
+			if (end < limit) {
+				buf.get(); // LF
+			}
+			return new String(b, StandardCharsets.ISO_8859_1);
+		}
+
 		@Override
 		public int getContentLength() {
 			return (int) contentLength;
@@ -266,6 +1500,15 @@ public class NetCache {
 			return headers.get(name.toLowerCase(Locale.ROOT));
 		}
 
+		@Override
+		public Map<String, List<String>> getHeaderFields() {
+			Map<String, List<String>> map = new LinkedHashMap<>(headers.size());
+			for (Entry<String, String> entry : headers.entrySet()) {
+				map.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+			}
+			return Collections.unmodifiableMap(map);
+		}
+
 		@Override
 		public String getHeaderFieldKey(int n) {
 			String[] harray = headers.keySet().toArray(new String[0]);
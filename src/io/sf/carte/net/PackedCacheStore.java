@@ -0,0 +1,498 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Appends the entries to large segment files, and keeps their offsets in the
+ * cache index.
+ * <p>
+ * Each record in a segment is made of a magic number, the length-prefixed key
+ * ({@code <host>/<encodedUrl>}), the length of the entry and the entry itself,
+ * so the index can be rebuilt by scanning the segments. A truncated record at
+ * the end of a segment (from an interrupted write) is dropped.
+ * </p>
+ * <p>
+ * Removed and superseded entries stay in their segments until
+ * {@link #compact()} copies the live entries of a mostly dead segment to the
+ * last one, and deletes the old segment.
+ * </p>
+ * <p>
+ * Appends, removals and compactions are serialized, while reads use positional
+ * channel reads and do not take any lock. A read that races with the deletion
+ * of a segment is retried with the new location of the entry. A segment
+ * channel that was closed by the interruption of a thread using it is
+ * reopened by the next read or append.
+ * </p>
+ */
+class PackedCacheStore implements CacheStore {
+
+	static final String PACK_DIRNAME = "pack";
+
+	static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final int RECORD_MAGIC = 0x4e435031; // NCP1
+
+	/**
+	 * How many times a read is attempted when segments are being compacted.
+	 */
+	private static final int READ_ATTEMPTS = 3;
+
+	/**
+	 * Size of the fixed parts of a record header: magic, key length and entry
+	 * length.
+	 */
+	private static final int RECORD_HEADER_SIZE = 10;
+
+	private final File packdir;
+
+	private final long maxSegmentSize;
+
+	private final CacheIndex index;
+
+	/**
+	 * The segments, by number. Compacted segments are {@code null}.
+	 */
+	private final List<FileChannel> segments = new CopyOnWriteArrayList<>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Open the segments in the given directory.
+	 * <p>
+	 * If the index is not empty, anything beyond the last indexed record of a
+	 * segment is dropped, as it comes from a write that did not reach the index.
+	 * </p>
+	 * 
+	 * @param packdir        the directory for the segment files.
+	 * @param maxSegmentSize the maximum size of a segment.
+	 * @param index          the cache index.
+	 * @throws IOException if the segments could not be opened.
+	 */
+	PackedCacheStore(File packdir, long maxSegmentSize, CacheIndex index) throws IOException {
+		super();
+		this.packdir = packdir;
+		this.maxSegmentSize = maxSegmentSize;
+		this.index = index;
+		if (!packdir.isDirectory()) {
+			if (!packdir.mkdirs()) {
+				throw new IOException("Could not create directory " + packdir.getAbsolutePath());
+			}
+		}
+		int last = -1;
+		String[] names = packdir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						int segment = Integer.parseInt(
+								name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+						last = Math.max(last, segment);
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+		for (int i = 0; i <= last; i++) {
+			File segfile = segmentFile(i);
+			segments.add(segfile.exists() ? openSegment(segfile) : null);
+		}
+		if (segments.isEmpty()) {
+			segments.add(openSegment(segmentFile(0)));
+		} else if (!index.values().isEmpty()) {
+			long[] ends = new long[segments.size()];
+			for (CacheIndex.Entry entry : index.values()) {
+				if (entry.segment >= 0 && entry.segment < ends.length) {
+					ends[entry.segment] = Math.max(ends[entry.segment], entry.offset + entry.length);
+				}
+			}
+			if (segments.get(last).size() > ends[last]) {
+				segments.get(last).truncate(ends[last]);
+			}
+		}
+	}
+
+	@Override
+	public void rebuildIndex() throws IOException {
+		for (int i = 0; i < segments.size(); i++) {
+			FileChannel channel = segments.get(i);
+			if (channel != null) {
+				scanSegment(i, channel);
+			}
+		}
+	}
+
+	private File segmentFile(int segment) {
+		return new File(packdir, String.format(Locale.ROOT, "%05d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private static FileChannel openSegment(File segfile) throws IOException {
+		return FileChannel.open(segfile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Reopen a segment whose channel was closed by an interrupted thread.
+	 * <p>
+	 * The segment is only reopened if its channel is still the given one, so
+	 * that a segment deleted by a compaction is not brought back.
+	 * </p>
+	 * 
+	 * @param segment the segment number.
+	 * @param channel the closed channel.
+	 * @return the current channel of the segment, or {@code null} if it was
+	 *         compacted.
+	 * @throws IOException if the segment could not be reopened.
+	 */
+	private synchronized FileChannel reopenSegment(int segment, FileChannel channel)
+			throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		FileChannel current = segments.get(segment);
+		if (current != null && current == channel && !current.isOpen()) {
+			current = openSegment(segmentFile(segment));
+			segments.set(segment, current);
+		}
+		return current;
+	}
+
+	private void scanSegment(int segment, FileChannel channel) throws IOException {
+		long size = channel.size();
+		long pos = 0;
+		ByteBuffer hdr = ByteBuffer.allocate(6);
+		ByteBuffer lenbuf = ByteBuffer.allocate(4);
+		while (pos < size) {
+			hdr.clear();
+			if (!readFully(channel, hdr, pos) || hdr.getInt(0) != RECORD_MAGIC) {
+				break;
+			}
+			int keylen = hdr.getShort(4) & 0xffff;
+			ByteBuffer keybuf = ByteBuffer.allocate(keylen);
+			lenbuf.clear();
+			if (!readFully(channel, keybuf, pos + 6) || !readFully(channel, lenbuf, pos + 6 + keylen)) {
+				break;
+			}
+			int entrylen = lenbuf.getInt(0);
+			long offset = pos + RECORD_HEADER_SIZE + keylen;
+			if (entrylen < 0 || offset + entrylen > size) {
+				break;
+			}
+			String key = new String(keybuf.array(), StandardCharsets.UTF_8);
+			index.putTransient(key, new CacheIndex.Entry(segment, offset, entrylen,
+					readStatus(channel, offset), 0));
+			pos = offset + entrylen;
+		}
+		if (pos < size) {
+			// Interrupted write
+			channel.truncate(pos);
+		}
+	}
+
+	private static int readStatus(FileChannel channel, long offset) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		if (!readFully(channel, buf, offset) || buf.get(3) != ' ' && buf.get(3) != '\n') {
+			return -1;
+		}
+		int status = 0;
+		for (int i = 0; i < 3; i++) {
+			byte b = buf.get(i);
+			if (b < '0' || b > '9') {
+				return -1;
+			}
+			status = status * 10 + b - '0';
+		}
+		return status;
+	}
+
+	@Override
+	public EntryOutput createEntry(String hostname, String encodedUrl) {
+		return new PackedEntryOutput(hostname, encodedUrl);
+	}
+
+	@Override
+	public InputStream openEntry(String hostname, String encodedUrl) throws IOException {
+		ByteBuffer buf = read(hostname, encodedUrl, false);
+		return new ByteArrayInputStream(buf.array(), 0, buf.limit());
+	}
+
+	@Override
+	public ByteBuffer readEntry(String hostname, String encodedUrl) throws IOException {
+		return read(hostname, encodedUrl, true);
+	}
+
+	private ByteBuffer read(String hostname, String encodedUrl, boolean map) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			CacheIndex.Entry loc = index.get(hostname, encodedUrl);
+			if (loc == null) {
+				throw new FileNotFoundException("Not in cache: " + hostname + '/' + encodedUrl);
+			}
+			FileChannel channel = segments.get(loc.segment);
+			try {
+				if (channel != null) {
+					if (map && loc.length >= MAP_THRESHOLD) {
+						return channel.map(FileChannel.MapMode.READ_ONLY, loc.offset, loc.length);
+					}
+					ByteBuffer buf = ByteBuffer.allocate((int) loc.length);
+					if (!readFully(channel, buf, loc.offset)) {
+						throw new EOFException("Truncated cache entry: " + hostname + '/' + encodedUrl);
+					}
+					buf.flip();
+					return buf;
+				}
+			} catch (ClosedChannelException e) {
+				/*
+				 * Either the segment was compacted, or the channel was closed because a
+				 * thread was interrupted while using it (maybe this one). In the latter
+				 * case the segment is reopened for the other threads.
+				 */
+				reopenSegment(loc.segment, channel);
+				if (attempt == READ_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				continue;
+			}
+			// The segment was compacted after the lookup
+			if (attempt == READ_ATTEMPTS) {
+				throw new FileNotFoundException("Cache entry moved: " + hostname + '/' + encodedUrl);
+			}
+		}
+	}
+
+	private synchronized CacheIndex.Entry append(String hostname, String encodedUrl, byte[] entry, int length,
+			int status, long expires, String blob) throws IOException {
+		String key = CacheIndex.key(hostname, encodedUrl);
+		long[] loc = write(key, ByteBuffer.wrap(entry, 0, length));
+		return index.put(hostname, encodedUrl, new CacheIndex.Entry((int) loc[0], loc[1], length,
+				status, expires, blob));
+	}
+
+	/**
+	 * Write a record at the end of the last segment, starting a new segment if
+	 * it would not fit.
+	 * 
+	 * @param key   the index key.
+	 * @param entry the entry.
+	 * @return the segment and the offset of the entry.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	private long[] write(String key, ByteBuffer entry) throws IOException {
+		byte[] keybytes = key.getBytes(StandardCharsets.UTF_8);
+		int segment = segments.size() - 1;
+		FileChannel channel = segments.get(segment);
+		if (!channel.isOpen()) {
+			channel = reopenSegment(segment, channel);
+		}
+		long pos = channel.size();
+		long reclen = RECORD_HEADER_SIZE + keybytes.length + entry.remaining();
+		if (pos != 0 && pos + reclen > maxSegmentSize) {
+			segment++;
+			channel = openSegment(segmentFile(segment));
+			segments.add(channel);
+			pos = 0;
+		}
+		ByteBuffer hdr = ByteBuffer.allocate(RECORD_HEADER_SIZE + keybytes.length);
+		hdr.putInt(RECORD_MAGIC);
+		hdr.putShort((short) keybytes.length);
+		hdr.put(keybytes);
+		hdr.putInt(entry.remaining());
+		hdr.flip();
+		long offset = pos + hdr.remaining();
+		writeFully(channel, hdr, pos);
+		writeFully(channel, entry, offset);
+		return new long[] { segment, offset };
+	}
+
+	/**
+	 * Remove the entry from the index. Its space is reclaimed when the segment is
+	 * compacted.
+	 */
+	@Override
+	public synchronized boolean remove(String hostname, String encodedUrl, CacheIndex.Entry entry)
+			throws IOException {
+		return index.remove(CacheIndex.key(hostname, encodedUrl), entry);
+	}
+
+	/**
+	 * Compact the segments where more than half of the space is used by removed or
+	 * superseded entries.
+	 * <p>
+	 * The live entries of those segments are appended to the last segment, and
+	 * then the segments are deleted. If the last segment is compacted, a new one
+	 * is started first.
+	 * </p>
+	 */
+	@Override
+	public synchronized void compact() throws IOException {
+		int nseg = segments.size();
+		long[] live = new long[nseg];
+		for (Map.Entry<String, CacheIndex.Entry> mapentry : index.entrySet()) {
+			CacheIndex.Entry entry = mapentry.getValue();
+			if (entry.segment >= 0 && entry.segment < nseg) {
+				live[entry.segment] += RECORD_HEADER_SIZE
+						+ mapentry.getKey().getBytes(StandardCharsets.UTF_8).length + entry.length;
+			}
+		}
+		BitSet compacting = new BitSet(nseg);
+		for (int i = 0; i < nseg; i++) {
+			FileChannel channel = segments.get(i);
+			if (channel != null && !channel.isOpen()) {
+				channel = reopenSegment(i, channel);
+			}
+			if (channel != null) {
+				long size = channel.size();
+				if (size != 0 && 2 * live[i] < size) {
+					compacting.set(i);
+				}
+			}
+		}
+		if (compacting.isEmpty()) {
+			return;
+		}
+		if (compacting.get(nseg - 1)) {
+			segments.add(openSegment(segmentFile(nseg)));
+		}
+		// Appends and removals are blocked, so the index entries of the
+		// compacted segments cannot change meanwhile.
+		for (Map.Entry<String, CacheIndex.Entry> mapentry : index.entrySet()) {
+			CacheIndex.Entry entry = mapentry.getValue();
+			if (entry.segment >= 0 && compacting.get(entry.segment)) {
+				ByteBuffer buf = ByteBuffer.allocate((int) entry.length);
+				FileChannel channel = segments.get(entry.segment);
+				if (!channel.isOpen()) {
+					channel = reopenSegment(entry.segment, channel);
+				}
+				if (readFully(channel, buf, entry.offset)) {
+					buf.flip();
+					long[] loc = write(mapentry.getKey(), buf);
+					index.replace(mapentry.getKey(), entry, entry.relocate((int) loc[0], loc[1]));
+				}
+			}
+		}
+		for (int i = compacting.nextSetBit(0); i >= 0; i = compacting.nextSetBit(i + 1)) {
+			FileChannel channel = segments.get(i);
+			segments.set(i, null);
+			channel.close();
+			Files.deleteIfExists(segmentFile(i).toPath());
+		}
+	}
+
+	static boolean readFully(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n == -1) {
+				return false;
+			}
+			pos += n;
+		}
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		IOException ex = null;
+		for (FileChannel channel : segments) {
+			if (channel == null) {
+				continue;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				ex = e;
+			}
+		}
+		if (ex != null) {
+			throw ex;
+		}
+	}
+
+	private class PackedEntryOutput extends EntryOutput {
+
+		private final String hostname;
+
+		private final String encodedUrl;
+
+		private final EntryBuffer buffer = new EntryBuffer();
+
+		PackedEntryOutput(String hostname, String encodedUrl) {
+			super();
+			this.hostname = hostname;
+			this.encodedUrl = encodedUrl;
+		}
+
+		@Override
+		public void write(int b) {
+			buffer.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buffer.write(b, off, len);
+		}
+
+		@Override
+		CacheIndex.Entry commit(int status, long expires, String blob) throws IOException {
+			return append(hostname, encodedUrl, buffer.getBuffer(), buffer.size(), status, expires, blob);
+		}
+
+		@Override
+		void discard() {
+			buffer.reset();
+		}
+
+	}
+
+	/**
+	 * Gives access to the internal buffer, to avoid copying the entry.
+	 */
+	private static class EntryBuffer extends ByteArrayOutputStream {
+
+		EntryBuffer() {
+			super(8192);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+
+	}
+
+}
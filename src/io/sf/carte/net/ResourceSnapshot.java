@@ -0,0 +1,153 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-memory copy of the resources retrieved while processing a document.
+ * <p>
+ * Each resource is retrieved once, and every connection opened afterwards to
+ * the same URL serves the same status, headers and body, no matter what the
+ * origin would send to a new request. Failures are remembered as well.
+ * </p>
+ * <p>
+ * Snapshots are meant to be short-lived: the resources are held in memory until
+ * the snapshot is discarded.
+ * </p>
+ */
+public class ResourceSnapshot {
+
+	private final ConcurrentHashMap<String, CompletableFuture<Resource>> resources = new ConcurrentHashMap<>();
+
+	/**
+	 * Open a connection to the snapshot of the given URL, retrieving it first if
+	 * it was not retrieved yet.
+	 * <p>
+	 * If several threads request the same URL while it is being retrieved, only
+	 * one retrieval is made and the other threads wait for it to complete.
+	 * </p>
+	 * 
+	 * @param url    the URL.
+	 * @param origin the origin used to retrieve the resource.
+	 * @return the connection to the snapshot.
+	 * @throws IOException if the resource could not be retrieved.
+	 */
+	public URLConnection openConnection(URL url, NetCache.Origin origin) throws IOException {
+		String key = url.toExternalForm();
+		CompletableFuture<Resource> future = new CompletableFuture<>();
+		CompletableFuture<Resource> running = resources.putIfAbsent(key, future);
+		Resource resource;
+		if (running == null) {
+			try {
+				resource = retrieve(url, origin);
+			} catch (IOException | RuntimeException | Error e) {
+				future.completeExceptionally(e);
+				throw e;
+			}
+			future.complete(resource);
+		} else {
+			resource = await(url, running);
+		}
+		return resource.openConnection(url);
+	}
+
+	/**
+	 * Check whether the given URL was retrieved or is being retrieved.
+	 * 
+	 * @param url the URL.
+	 * @return {@code true} if the snapshot has the URL.
+	 */
+	public boolean contains(URL url) {
+		return resources.containsKey(url.toExternalForm());
+	}
+
+	/**
+	 * Get the number of resources in this snapshot.
+	 * 
+	 * @return the number of resources, including the failed ones.
+	 */
+	public int size() {
+		return resources.size();
+	}
+
+	private static Resource retrieve(URL url, NetCache.Origin origin) throws IOException {
+		URLConnection ucon = origin.openConnection(url);
+		ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+		boolean contentEncodingGzip = NetCache.writeHead(ucon, head);
+		ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+		try (InputStream is = contentEncodingGzip ? new GZIPInputStream(ucon.getInputStream())
+				: ucon.getInputStream()) {
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = is.read(b)) != -1) {
+				body.write(b, 0, n);
+			}
+		}
+		return new Resource(head.toByteArray(), body.toByteArray());
+	}
+
+	private static Resource await(URL url, CompletableFuture<Resource> running)
+			throws IOException {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while retrieving " + url.toExternalForm());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static class Resource {
+
+		/**
+		 * The status line and headers, without the final empty line.
+		 */
+		private final byte[] head;
+
+		private final byte[] body;
+
+		Resource(byte[] head, byte[] body) {
+			super();
+			this.head = head;
+			this.body = body;
+		}
+
+		URLConnection openConnection(URL url) {
+			NetCache.CacheConnection ucon = new NetCache.CacheConnection(url, head,
+					new ByteArrayInputStream(body));
+			ucon.contentLength = body.length;
+			return ucon;
+		}
+
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+
+ Copyright (c) 2017-2026, Carlos Amengual.
+
+ Licensed under a BSD-style License. You can find the license here:
+ https://css4j.github.io/LICENSE.txt
+
+ */
+
+// SPDX-License-Identifier: BSD-2-Clause OR BSD-3-Clause
+
+package io.sf.carte.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The codec used to store the body of the cache entries.
+ * <p>
+ * The codec of an entry is recorded in the entry itself, so a cache may hold
+ * entries stored with different codecs.
+ * </p>
+ */
+public enum StorageCodec {
+
+	/**
+	 * The body is stored as is.
+	 */
+	NONE,
+
+	/**
+	 * The body is stored in gzip format, with the default compression level.
+	 */
+	GZIP,
+
+	/**
+	 * The body is stored in zlib format, favouring speed over compression ratio.
+	 */
+	DEFLATE;
+
+	/**
+	 * Get the name of this codec as recorded in the entries.
+	 *
+	 * @return the lower-case name of the codec.
+	 */
+	public String getName() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Get the codec with the given name.
+	 *
+	 * @param name the codec name, case-insensitive.
+	 * @return the codec.
+	 * @throws IllegalArgumentException if there is no codec with that name.
+	 */
+	public static StorageCodec forName(String name) {
+		return valueOf(name.trim().toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * Wrap the given stream so that the data written to it is compressed.
+	 * <p>
+	 * Closing the returned stream writes the remaining compressed data, and then
+	 * closes {@code out}.
+	 * </p>
+	 *
+	 * @param out the stream where the compressed data is written.
+	 * @return the compressing stream.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	OutputStream compress(OutputStream out) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPOutputStream(out, 8192);
+		case DEFLATE:
+			return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 8192) {
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						def.end();
+					}
+				}
+
+			};
+		default:
+			return out;
+		}
+	}
+
+	/**
+	 * Wrap the given stream so that the data read from it is decompressed.
+	 *
+	 * @param in the stream with the compressed data.
+	 * @return the decompressing stream.
+	 * @throws IOException if an I/O error occurred.
+	 */
+	InputStream decompress(InputStream in) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPInputStream(in, 8192);
+		case DEFLATE:
+			return new InflaterInputStream(in);
+		default:
+			return in;
+		}
+	}
+
+}